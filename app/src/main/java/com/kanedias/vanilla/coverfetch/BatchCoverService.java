@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.app.IntentService;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+import androidx.documentfile.provider.DocumentFile;
+
+import com.kanedias.vanilla.plugins.PluginUtils;
+import com.kanedias.vanilla.plugins.saf.SafUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.Manifest.permission.WRITE_EXTERNAL_STORAGE;
+import static com.kanedias.vanilla.plugins.PluginConstants.LOG_TAG;
+import static com.kanedias.vanilla.plugins.PluginConstants.PREF_SDCARD_URI;
+
+/**
+ * Headless batch mode: fills in {@code folder.jpg} for the whole set of media files at once.
+ * <p/>
+ * Accepts either a list of media file uris ({@link #EXTRA_MEDIA_URIS}) or a directory
+ * to walk recursively ({@link #EXTRA_DIRECTORY}). Files are grouped by their album folder,
+ * folders that already have artwork (see {@link LocalArtworkIndex}) are skipped, and the rest are looked up with bounded
+ * parallelism. Progress and throughput are shown in a notification.
+ * <p/>
+ * Service is not exported: it writes through the user's storage grants, so only the cover dialog may start it.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class BatchCoverService extends IntentService {
+
+    public static final String ACTION_BATCH_FETCH = "com.kanedias.vanilla.coverfetch.action.BATCH_FETCH";
+
+    /**
+     * {@code ArrayList<Uri>} of media files, file scheme only
+     */
+    public static final String EXTRA_MEDIA_URIS = "com.kanedias.vanilla.coverfetch.extra.MEDIA_URIS";
+
+    /**
+     * Absolute path of the directory to walk for media files
+     */
+    public static final String EXTRA_DIRECTORY = "com.kanedias.vanilla.coverfetch.extra.DIRECTORY";
+
+    private static final int MAX_PARALLEL_ALBUMS = 3;
+    private static final long ALBUM_TIMEOUT_MS = 60_000;
+
+    private static final String NOTIFICATION_CHANNEL = "batch-fetch";
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final Set<String> AUDIO_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "mp3", "flac", "ogg", "oga", "opus", "m4a", "aac", "wma", "wav", "ape", "mpc", "wv"));
+
+    private NotificationManager mNotificationManager;
+    private SharedPreferences mPrefs;
+
+    public BatchCoverService() {
+        super("BatchCoverService");
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL,
+                    getString(R.string.batch_fetch), NotificationManager.IMPORTANCE_LOW);
+            mNotificationManager.createNotificationChannel(channel);
+        }
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null || !ACTION_BATCH_FETCH.equals(intent.getAction())) {
+            return;
+        }
+
+        if (!PluginUtils.havePermissions(this, WRITE_EXTERNAL_STORAGE)) {
+            Log.e(LOG_TAG, "Batch fetch requires storage permission, grant it in the cover dialog first");
+            return;
+        }
+
+        startForeground(NOTIFICATION_ID, buildProgress(0, 0, 0).build());
+        try {
+            Map<File, File> albums = collectAlbumFolders(intent);
+            fetchAll(albums);
+        } finally {
+            stopForeground(false);
+        }
+    }
+
+    /**
+     * Group requested media files by their folder, skipping folders that already have artwork
+     *
+     * @return map of album folder to one of its media files, in order of discovery
+     */
+    private Map<File, File> collectAlbumFolders(Intent intent) {
+        List<File> mediaFiles = new ArrayList<>();
+
+        ArrayList<Uri> uris = intent.getParcelableArrayListExtra(EXTRA_MEDIA_URIS);
+        if (uris != null) {
+            for (Uri uri : uris) {
+                if (uri != null && uri.getPath() != null) {
+                    mediaFiles.add(new File(uri.getPath()));
+                }
+            }
+        }
+
+        LocalArtworkIndex artIndex = CoverEngines.artworkIndex(this);
+        String directory = intent.getStringExtra(EXTRA_DIRECTORY);
+        if (directory != null) {
+            // pick up artwork added since the last scan
+            int listed = artIndex.scan(new File(directory));
+            Log.d(LOG_TAG, "Batch fetch: " + listed + " changed folders re-indexed");
+            walk(new File(directory), mediaFiles);
+        }
+
+        Map<File, File> albums = new LinkedHashMap<>();
+        Set<File> skipped = new HashSet<>();
+        for (File media : mediaFiles) {
+            File folder = media.getParentFile();
+            if (folder == null || albums.containsKey(folder) || skipped.contains(folder)) {
+                continue;
+            }
+
+            if (artIndex.find(folder) != null) {
+                // already has artwork
+                skipped.add(folder);
+                continue;
+            }
+
+            albums.put(folder, media);
+        }
+
+        Log.i(LOG_TAG, "Batch fetch: " + albums.size() + " folders without artwork, " + skipped.size() + " skipped");
+        return albums;
+    }
+
+    private static void walk(File dir, List<File> collected) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                walk(child, collected);
+                continue;
+            }
+
+            String name = child.getName();
+            int extStart = name.lastIndexOf('.');
+            if (extStart > 0 && AUDIO_EXTENSIONS.contains(name.substring(extStart + 1).toLowerCase(Locale.ROOT))) {
+                collected.add(child);
+            }
+        }
+    }
+
+    private void fetchAll(Map<File, File> albums) {
+        CoverEngine engine = CoverEngines.get(this);
+        ExecutorService workers = Executors.newFixedThreadPool(MAX_PARALLEL_ALBUMS);
+
+        int total = albums.size();
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger found = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long start = System.currentTimeMillis();
+
+        for (Map.Entry<File, File> album : albums.entrySet()) {
+            workers.submit(() -> {
+                try {
+                    if (fetchOne(engine, album.getKey(), album.getValue())) {
+                        found.incrementAndGet();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // runtime ones too, e.g. from SAF or decoder, executor would swallow them silently
+                    Log.w(LOG_TAG, "Batch fetch: couldn't get artwork for " + album.getKey(), e);
+                    failed.incrementAndGet();
+                } finally {
+                    int processed = done.incrementAndGet();
+                    mNotificationManager.notify(NOTIFICATION_ID, buildProgress(processed, total, start).build());
+                }
+            });
+        }
+
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        long elapsedMs = Math.max(System.currentTimeMillis() - start, 1);
+        Log.i(LOG_TAG, String.format(Locale.US, "Batch fetch: %d of %d folders got artwork, %d failed, in %d s (%.2f folders/s)",
+                found.get(), total, failed.get(), elapsedMs / 1000, done.get() * 1000.0 / elapsedMs));
+
+        NotificationCompat.Builder summary = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL)
+                .setSmallIcon(R.drawable.icon)
+                .setContentTitle(getString(R.string.batch_fetch))
+                .setContentText(getString(R.string.batch_fetch_complete, found.get(), total));
+        mNotificationManager.notify(NOTIFICATION_ID, summary.build());
+    }
+
+    /**
+     * Look up cover for the album folder and write it as {@code folder.jpg}
+     *
+     * @param engine engine to look up with
+     * @param folder album folder
+     * @param media one of the media files in the folder, used to find tags
+     * @return true if artwork was written, false if there's nothing to write
+     * @throws IOException if lookup or write failed
+     */
+    private boolean fetchOne(CoverEngine engine, File folder, File media) throws IOException {
+        CoverRequest request = requestFor(media);
+        if (request == null) {
+            return false;
+        }
+
+        request.setResolution(CoverSettings.getResolution(mPrefs)).setTimeout(ALBUM_TIMEOUT_MS);
+        File cover = engine.getCover(request);
+        if (cover == null) {
+            return false;
+        }
+
+        writeFolderJpg(cover, new File(folder, "folder.jpg"));
+        CoverEngines.artworkIndex(this).invalidate(folder);
+        MediaScannerConnection.scanFile(this, new String[]{media.getAbsolutePath()}, null, null);
+        return true;
+    }
+
+    /**
+     * Build cover request from media store tags of the file. If media store doesn't know the file,
+     * falls back to common "Artist/Album/Track" folder layout.
+     */
+    private CoverRequest requestFor(File media) {
+        String[] projection = {
+                MediaStore.Audio.Media.TITLE,
+                MediaStore.Audio.Media.ARTIST,
+                MediaStore.Audio.Media.ALBUM
+        };
+
+        Cursor cursor = getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection,
+                MediaStore.Audio.Media.DATA + " = ?", new String[]{media.getAbsolutePath()}, null);
+        if (cursor != null) {
+            // cursor is not closeable before API 16
+            try {
+                if (cursor.moveToFirst() && cursor.getString(0) != null) {
+                    return new CoverRequest(cursor.getString(0), knownOrNull(cursor.getString(1)), knownOrNull(cursor.getString(2)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        File albumDir = media.getParentFile();
+        if (albumDir == null) {
+            return null;
+        }
+
+        File artistDir = albumDir.getParentFile();
+        String name = media.getName();
+        int extStart = name.lastIndexOf('.');
+        String title = extStart > 0 ? name.substring(0, extStart) : name;
+        return new CoverRequest(title, artistDir == null ? null : artistDir.getName(), albumDir.getName());
+    }
+
+    private static String knownOrNull(String tag) {
+        if (tag == null || tag.isEmpty() || MediaStore.UNKNOWN_STRING.equals(tag)) {
+            return null;
+        }
+        return tag;
+    }
+
+    /**
+     * Write cover as {@code folder.jpg}. JPEG covers are copied as is, others are converted.
+     * Covers are shrunk if user asked to limit their size.
+     * <p/>
+     * Folders on removable storage are written through SAF, if user granted access to it in the dialog before.
+     */
+    private void writeFolderJpg(File cover, File target) throws IOException {
+        CoverWriter.Limit limit = CoverSettings.getWriteLimit(mPrefs);
+        byte[] data = limit == null
+                ? CoverWriter.readAs(getContentResolver(), Uri.fromFile(cover), CoverWriter.Format.JPEG)
+                : CoverWriter.readWithin(getContentResolver(), Uri.fromFile(cover), CoverWriter.Format.JPEG, limit);
+
+        if (!SafUtils.isSafNeeded(target, this)) {
+            try (OutputStream os = new FileOutputStream(target)) {
+                os.write(data);
+            }
+            return;
+        }
+
+        if (!mPrefs.contains(PREF_SDCARD_URI)) {
+            throw new IOException("No SAF access to removable storage, open the cover dialog for this folder first");
+        }
+
+        // albums are written one after another, resolver makes it one query per new folder
+        Uri sdRoot = Uri.parse(mPrefs.getString(PREF_SDCARD_URI, ""));
+        SafDocumentResolver resolver = CoverEngines.safResolver(this, sdRoot);
+        DocumentFile targetRef = resolver.createOrReplace(target.getParentFile(), target.getName(), "image/*");
+        if (targetRef == null) {
+            throw new IOException("Couldn't create file through SAF: " + target);
+        }
+
+        try (OutputStream os = getContentResolver().openOutputStream(targetRef.getUri(), "rwt")) {
+            if (os == null) {
+                throw new IOException("SAF provided incorrect URI! " + targetRef.getUri());
+            }
+            os.write(data);
+        } catch (IOException e) {
+            resolver.invalidate(target.getParentFile());
+            throw e;
+        }
+    }
+
+    private NotificationCompat.Builder buildProgress(int done, int total, long start) {
+        String text;
+        if (done == 0) {
+            text = getString(R.string.batch_fetch_scanning);
+        } else {
+            double perSecond = done * 1000.0 / Math.max(System.currentTimeMillis() - start, 1);
+            text = getString(R.string.batch_fetch_progress, done, total, perSecond);
+        }
+
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL)
+                .setSmallIcon(R.drawable.icon)
+                .setContentTitle(getString(R.string.batch_fetch))
+                .setContentText(text)
+                .setOnlyAlertOnce(true)
+                .setOngoing(true)
+                .setProgress(total, done, total == 0);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Cover engine decorator that keeps fetched covers on disk, so repeated lookups of the same
+ * track/album don't go to the network again.
+ * <p/>
+ * Covers are kept in {@link CoverBlobStore} under the hash of lookup key (see {@link CoverKeys}),
+ * so all tracks of the same album share one cached cover, and albums with the same artwork share one file.
+ * Delegate should download into spool directory of the store (see {@link CoverBlobStore#getSpoolDir()}),
+ * then fetched covers are moved into the store without copying.
+ * <p/>
+ * Lookups that completed in time and returned nothing are remembered in {@link MissRegistry}
+ * and are not repeated until their back-off period expires, unless request explicitly asks to ignore them
+ * (see {@link CoverRequest#isIgnoreMisses()}). Cached covers themselves are skipped on explicit reload
+ * (see {@link CoverRequest#isSkipCache()}), fetched cover then replaces the cached one for the key.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CachingCoverEngine implements CoverEngine {
+
+    private final CoverEngine mDelegate;
+    private final MissRegistry mMisses;
+    private final CoverBlobStore mStore;
+
+    /**
+     * @param delegate engine to query when cover is not in the cache
+     * @param misses registry of recent misses to skip lookups for
+     * @param store store to keep fetched covers in
+     */
+    public CachingCoverEngine(CoverEngine delegate, MissRegistry misses, CoverBlobStore store) {
+        mDelegate = delegate;
+        mMisses = misses;
+        mStore = store;
+    }
+
+    @Override
+    public File getCover(CoverRequest request) throws IOException {
+        String key = CoverKeys.hashed(CoverKeys.lookupKey(request));
+
+        File cached = request.isSkipCache() ? null : mStore.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (!request.isIgnoreMisses() && mMisses.isBackedOff(key)) {
+            // we already know there's nothing there
+            return null;
+        }
+
+        File fetched = mDelegate.getCover(request);
+        if (fetched == null || fetched.length() == 0) {
+            boolean finished = !request.isCancelled() && request.getRemainingMs() > 0;
+            if (finished && request.getMaxImageBytes() == Long.MAX_VALUE) {
+                // cancelled or timed out lookups prove nothing, nor do ones that may have skipped a large cover
+                mMisses.recordMiss(key);
+            }
+            return null;
+        }
+
+        mMisses.forget(key);
+        return mStore.put(key, fetched);
+    }
+}
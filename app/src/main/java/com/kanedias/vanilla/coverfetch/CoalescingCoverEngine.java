@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cover engine decorator that de-duplicates concurrent lookups. Requests that normalize to
+ * the same (artist, album) key share one in-flight lookup and all receive its result.
+ * E.g. player asking for several tracks of the same album at once, or user tapping reload repeatedly,
+ * results in only one lookup.
+ * <p/>
+ * Shared lookups run on a separate executor with their own request, so cancelling
+ * one of the waiters doesn't affect the others. The lookup itself is cancelled only when
+ * all of its waiters are gone, and its deadline is the latest one among them, so it doesn't
+ * outlive everyone who waits for it.
+ * <p/>
+ * Background lookup (see {@link CoverRequest#isBackground()}) that is joined by an interactive one
+ * is promoted: from then on it doesn't yield to other lookups and has no stricter image limit than
+ * the interactive one has. Bytes the shared lookup received are accounted to the request that started it.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CoalescingCoverEngine implements CoverEngine {
+
+    /**
+     * In-flight lookup along with the number of requests waiting for it
+     */
+    private static class Flight {
+        private final CoverRequest mOwner;
+        private final CoverRequest mShared;
+        private Future<File> mFuture;
+        private int mWaiters;
+
+        private Flight(CoverRequest owner) {
+            mOwner = owner;
+            mShared = owner.copyWithDeadline();
+        }
+
+        /**
+         * Make shared lookup serve the joined request as well as its owner
+         */
+        private void join(CoverRequest joined) {
+            mShared.extendDeadline(joined);
+            if (!joined.isBackground()) {
+                mShared.setBackground(false);
+            }
+            mShared.setMaxImageBytes(Math.max(mShared.getMaxImageBytes(), joined.getMaxImageBytes()));
+        }
+    }
+
+    private final CoverEngine mDelegate;
+    private final ExecutorService mExecutor;
+
+    private final Map<String, Flight> mFlights = new HashMap<>();
+
+    /**
+     * @param delegate engine to perform actual lookups with
+     * @param executor executor to run shared lookups on
+     */
+    public CoalescingCoverEngine(CoverEngine delegate, ExecutorService executor) {
+        mDelegate = delegate;
+        mExecutor = executor;
+    }
+
+    @Override
+    public File getCover(CoverRequest request) throws IOException {
+        // reload must not join a lookup that may be answered from cache
+        String key = request.isSkipCache() ? CoverKeys.lookupKey(request) + "\treload" : CoverKeys.lookupKey(request);
+
+        Flight flight;
+        synchronized (mFlights) {
+            flight = mFlights.get(key);
+            if (flight == null) {
+                Flight created = new Flight(request);
+                created.mFuture = mExecutor.submit(() -> {
+                    // executor is shared with interactive lookups, don't compete with them for CPU
+                    int priority = Process.getThreadPriority(Process.myTid());
+                    if (created.mShared.isBackground()) {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    }
+
+                    try {
+                        return mDelegate.getCover(created.mShared);
+                    } finally {
+                        Process.setThreadPriority(priority);
+                        created.mOwner.addTransferredBytes(created.mShared.getTransferredBytes());
+                        synchronized (mFlights) {
+                            if (mFlights.get(key) == created) {
+                                mFlights.remove(key);
+                            }
+                        }
+                    }
+                });
+                mFlights.put(key, created);
+                flight = created;
+            } else {
+                flight.join(request);
+            }
+            flight.mWaiters++;
+        }
+
+        Flight joined = flight;
+        AtomicBoolean left = new AtomicBoolean();
+        Runnable leave = () -> {
+            if (left.compareAndSet(false, true)) {
+                leave(key, joined);
+            }
+        };
+
+        request.addCancelListener(leave);
+        try {
+            long remaining = request.getRemainingMs();
+            return remaining == Long.MAX_VALUE
+                    ? joined.mFuture.get()
+                    : joined.mFuture.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new InterruptedIOException("Cover request deadline exceeded");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for shared cover lookup");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Shared cover lookup failed", e.getCause());
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Shared cover lookup was cancelled");
+        } finally {
+            request.removeCancelListener(leave);
+            leave.run();
+        }
+    }
+
+    private void leave(String key, Flight flight) {
+        synchronized (mFlights) {
+            flight.mWaiters--;
+            if (flight.mWaiters > 0 || flight.mFuture.isDone()) {
+                return;
+            }
+
+            // nobody waits for this lookup anymore
+            if (mFlights.get(key) == flight) {
+                mFlights.remove(key);
+            }
+        }
+
+        flight.mShared.cancel();
+        flight.mFuture.cancel(true);
+    }
+}
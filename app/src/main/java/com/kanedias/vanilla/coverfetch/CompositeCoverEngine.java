@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Cover engine that combines several sources under one policy. Each source has a priority
+ * and a timeout, so slow upstream can't hold the lookup longer than it's allowed to.
+ * <ul>
+ *     <li>{@link Policy#SEQUENTIAL} - ask sources one by one in priority order, first hit wins;</li>
+ *     <li>{@link Policy#RACE} - ask all sources at once, first hit wins;</li>
+ *     <li>{@link Policy#HEDGED} - start with the first source, if it doesn't answer within its usual (median)
+ *     latency, start the next one too, and so on. First hit wins.</li>
+ * </ul>
+ * Each source works on its own child of the request (see {@link CoverRequest#child()}), so the source
+ * that timed out or lost is cancelled for real: its connections are closed instead of running to completion.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CompositeCoverEngine implements CoverEngine {
+
+    private static final String TAG = CompositeCoverEngine.class.getSimpleName();
+
+    public enum Policy {
+        SEQUENTIAL,
+        RACE,
+        HEDGED
+    }
+
+    /**
+     * Cover engine along with the rules of querying it
+     */
+    public static class Source {
+
+        /**
+         * How many latest latency samples to keep for median calculation
+         */
+        private static final int LATENCY_SAMPLES = 32;
+
+        private final String mName;
+        private final CoverEngine mEngine;
+        private final int mPriority;
+        private final long mTimeoutMs;
+
+        private final long[] mLatencies = new long[LATENCY_SAMPLES];
+        private int mLatencyCount;
+
+        /**
+         * @param name      source name, for logging
+         * @param engine    engine to query
+         * @param priority  lower values are queried first
+         * @param timeoutMs how long to wait for this source at most
+         */
+        public Source(String name, CoverEngine engine, int priority, long timeoutMs) {
+            mName = name;
+            mEngine = engine;
+            mPriority = priority;
+            mTimeoutMs = timeoutMs;
+        }
+
+        private synchronized void recordLatency(long latencyMs) {
+            mLatencies[mLatencyCount % LATENCY_SAMPLES] = latencyMs;
+            mLatencyCount++;
+        }
+
+        /**
+         * @return median latency of recent answers, hits and misses alike, or half of the timeout if nothing is known yet
+         */
+        private synchronized long medianLatency() {
+            int count = Math.min(mLatencyCount, LATENCY_SAMPLES);
+            if (count == 0) {
+                return mTimeoutMs / 2;
+            }
+
+            long[] sorted = Arrays.copyOf(mLatencies, count);
+            Arrays.sort(sorted);
+            return sorted[count / 2];
+        }
+    }
+
+    private final Policy mPolicy;
+    private final List<Source> mSources;
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param policy   how to combine the sources
+     * @param sources  sources to query
+     * @param executor executor to run source queries on, should allow as many threads as there are sources
+     */
+    public CompositeCoverEngine(Policy policy, List<Source> sources, ExecutorService executor) {
+        mPolicy = policy;
+        mSources = new ArrayList<>(sources);
+        mExecutor = executor;
+
+        Collections.sort(mSources, (s1, s2) -> s1.mPriority - s2.mPriority);
+    }
+
+    @Override
+    public File getCover(CoverRequest request) throws IOException {
+        switch (mPolicy) {
+            case SEQUENTIAL:
+                return querySequentially(request);
+            case RACE:
+            case HEDGED:
+            default:
+                return queryConcurrently(request);
+        }
+    }
+
+    private File querySequentially(CoverRequest request) throws IOException {
+        IOException lastError = null;
+        for (Source source : mSources) {
+            if (request.isCancelled() || request.getRemainingMs() == 0) {
+                break;
+            }
+
+            CoverRequest child = request.child();
+            Future<File> pending = mExecutor.submit(() -> query(source, child));
+            try {
+                File cover = pending.get(Math.min(source.mTimeoutMs, request.getRemainingMs()), TimeUnit.MILLISECONDS);
+                if (cover != null) {
+                    return cover;
+                }
+            } catch (TimeoutException e) {
+                Log.w(TAG, "Source " + source.mName + " timed out, trying next one");
+                child.cancel();
+                pending.cancel(true);
+            } catch (ExecutionException e) {
+                lastError = asIoException(source, e);
+            } catch (InterruptedException e) {
+                child.cancel();
+                pending.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + source.mName);
+            } finally {
+                child.detach();
+            }
+        }
+
+        if (lastError != null) {
+            // some of the sources may have had a cover, we just couldn't retrieve it
+            throw lastError;
+        }
+        return null;
+    }
+
+    /**
+     * Start sources concurrently, either all at once (race) or staggered by median latency of
+     * the previously started one (hedged). First source that returns a cover wins, others are cancelled.
+     * Sources that exceed their timeout are cancelled individually.
+     */
+    private File queryConcurrently(CoverRequest request) throws IOException {
+        int total = mSources.size();
+        CompletionService<File> running = new ExecutorCompletionService<>(mExecutor);
+        List<Future<File>> started = new ArrayList<>(total);
+        List<CoverRequest> children = new ArrayList<>(total);
+        long[] deadlines = new long[total];
+        boolean[] finished = new boolean[total];
+        int active = 0;
+        long nextStartAt = 0;
+
+        IOException lastError = null;
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+
+                // start next source if it's time
+                if (started.size() < total && now >= nextStartAt) {
+                    Source next = mSources.get(started.size());
+                    deadlines[started.size()] = now + Math.min(next.mTimeoutMs, request.getRemainingMs());
+                    CoverRequest child = request.child();
+                    children.add(child);
+                    started.add(running.submit(() -> query(next, child)));
+                    active++;
+
+                    nextStartAt = mPolicy == Policy.RACE ? now : now + Math.min(next.medianLatency(), next.mTimeoutMs);
+                    continue;
+                }
+
+                // cancel sources that are out of time
+                long nearestDeadline = Long.MAX_VALUE;
+                for (int i = 0; i < started.size(); ++i) {
+                    if (finished[i]) {
+                        continue;
+                    }
+
+                    if (now >= deadlines[i]) {
+                        Log.w(TAG, "Source " + mSources.get(i).mName + " timed out");
+                        children.get(i).cancel();
+                        started.get(i).cancel(true);
+                        finished[i] = true;
+                        active--;
+                        continue;
+                    }
+                    nearestDeadline = Math.min(nearestDeadline, deadlines[i]);
+                }
+
+                if (active == 0) {
+                    if (started.size() == total) {
+                        // everyone answered or timed out
+                        break;
+                    }
+
+                    // nothing is running, no point in waiting for hedge delay
+                    nextStartAt = now;
+                    continue;
+                }
+
+                // wait for next answer, next start or nearest deadline, whichever is earlier
+                long wakeUp = started.size() < total ? Math.min(nearestDeadline, nextStartAt) : nearestDeadline;
+                Future<File> done = running.poll(Math.max(wakeUp - now, 1), TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    continue;
+                }
+
+                int idx = started.indexOf(done);
+                if (finished[idx]) {
+                    // already cancelled by timeout
+                    continue;
+                }
+
+                finished[idx] = true;
+                active--;
+                try {
+                    File cover = done.get();
+                    if (cover != null) {
+                        return cover;
+                    }
+                } catch (ExecutionException e) {
+                    lastError = asIoException(mSources.get(idx), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for cover sources");
+        } finally {
+            // losers are cancelled, winner is done already and cancelling it changes nothing
+            for (int i = 0; i < started.size(); ++i) {
+                children.get(i).cancel();
+                children.get(i).detach();
+                started.get(i).cancel(true);
+            }
+        }
+
+        if (lastError != null) {
+            // some of the sources may have had a cover, we just couldn't retrieve it
+            throw lastError;
+        }
+        return null;
+    }
+
+    private static File query(Source source, CoverRequest request) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            return source.mEngine.getCover(request);
+        } finally {
+            if (!request.isCancelled()) {
+                // misses and failures count too, otherwise median of a source that mostly misses is never learned
+                source.recordLatency(System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    private static IOException asIoException(Source source, ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+            return (IOException) e.getCause();
+        }
+
+        return new IOException("Unexpected failure of " + source.mName, e.getCause());
+    }
+}
@@ -17,157 +17,716 @@
 package com.kanedias.vanilla.coverfetch;
 
 import android.net.Uri;
+import android.os.Process;
 import android.util.Log;
 
-import com.kanedias.vanilla.plugins.PluginUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Random;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.HttpsURLConnection;
+import okhttp3.Call;
+import okhttp3.ResponseBody;
 
 /**
  * Implementation of cover fetch engine based on CoverArtArchive API (coverartarchive.org).
+ * <p/>
+ * Lookup consists of three steps:
+ * <ol>
+ *     <li>Search for release groups on musicbrainz, following the query plan (see {@link Stage}):
+ *     the next stage runs only if the previous one found nothing or found only a poor match;</li>
+ *     <li>Ask cover art archive index which of the found release groups actually have front image;</li>
+ *     <li>Download the front image of the best-ranked release group that has it.</li>
+ * </ol>
+ * Index answers are small JSON documents, so only one image body is ever transferred per lookup.
+ * <p/>
+ * If album is known, it's resolved to a release group once and the result is remembered in
+ * {@link ReleaseGroupIndex}, so other tracks of the album skip the search and get the same cover.
+ * Index answers are remembered in {@link CoverIndexCache} and later only re-validated with conditional requests.
+ * <p/>
+ * Downloaded images are put into {@link CoverBlobStore} along with their url. If another album
+ * resolves to the image that's already stored, e.g. other edition of the same release group,
+ * the download is skipped and stored cover is returned.
  *
  * @author Oleg Chernovskiy
  *
  */
 public class CoverArchiveEngine implements CoverEngine {
 
-    private static final String USER_AGENT = "Vanilla Cover Fetch (https://github.com/vanilla-music)";
-
     private static final String TAG = CoverArchiveEngine.class.getSimpleName();
 
-    @Override
-    public byte[] getCover(String trackName, String artistName, String albumName) {
-        try {
-            if (trackName != null && artistName != null) {
-                return makeApiCall(String.format("recording:%s AND artistname:%s", trackName, artistName));
+    private static final String MUSICBRAINZ_ENDPOINT = "https://musicbrainz.org";
+    private static final String COVERARTARCHIVE_ENDPOINT = "https://coverartarchive.org";
+
+    private static final int HTTP_NOT_MODIFIED = 304;
+
+    /**
+     * Upper bound of musicbrainz searches and index probes for a single lookup, across all plan stages
+     */
+    private static final int MAX_REQUESTS_PER_LOOKUP = 10;
+
+    /**
+     * Match with confidence at least this high ends the plan, later stages can't do much better
+     */
+    private static final double CONFIDENT_MATCH = 0.75;
+
+    /**
+     * Stages of the query plan, in order of execution. Each one has its own limit of release groups
+     * to request from musicbrainz (they are re-ranked locally) and of the best-ranked ones to probe for images.
+     */
+    private enum Stage {
+
+        /**
+         * Album is known: search it directly, that's what the cover belongs to
+         */
+        RELEASE_GROUP(8, 3) {
+            @Override
+            SearchQuery queryFor(CoverRequest request) {
+                if (request.getAlbum() == null) {
+                    return null;
+                }
+                return new SearchQuery().and("releasegroup", request.getAlbum()).and("artistname", request.getArtist());
+            }
+        },
+
+        /**
+         * Album tag is missing or wrong, but track and artist point to the release it's on
+         */
+        RECORDING_ARTIST(5, 3) {
+            @Override
+            SearchQuery queryFor(CoverRequest request) {
+                if (request.getTitle() == null || request.getArtist() == null) {
+                    return null;
+                }
+                return new SearchQuery().and("recording", request.getTitle()).and("artistname", request.getArtist());
             }
+        },
 
-            if (trackName != null && albumName != null) {
-                return makeApiCall(String.format("recording:%s AND releasegroup:%s", trackName, albumName));
+        /**
+         * Last resort, track name alone still gives pretty good idea what it can be
+         */
+        RECORDING(5, 2) {
+            @Override
+            SearchQuery queryFor(CoverRequest request) {
+                if (request.getTitle() == null) {
+                    return null;
+                }
+                return new SearchQuery().and("recording", request.getTitle());
             }
+        };
+
+        private final int searchLimit;
+        private final int maxProbes;
+
+        Stage(int searchLimit, int maxProbes) {
+            this.searchLimit = searchLimit;
+            this.maxProbes = maxProbes;
+        }
+
+        /**
+         * @return query of this stage or null if request doesn't have the fields it needs
+         */
+        abstract SearchQuery queryFor(CoverRequest request);
+    }
+
+    /**
+     * Release group with front image found by one of the plan stages
+     */
+    private static class Hit {
+
+        private final Stage stage;
+        private final String mbid;
+        private final String imageUrl;
+        private final double confidence;
+
+        private Hit(Stage stage, String mbid, String imageUrl, double confidence) {
+            this.stage = stage;
+            this.mbid = mbid;
+            this.imageUrl = imageUrl;
+            this.confidence = confidence;
+        }
+    }
+
+    /**
+     * Hard limit for downloaded thumbnail size. 500px thumbnails are usually ~100 KiB
+     */
+    private static final long MAX_IMAGE_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Hard limit for downloaded original image, these are scans and can be huge
+     */
+    private static final long MAX_ORIGINAL_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * How many cover art archive requests can be in flight at once, across all lookups
+     */
+    private static final int MAX_PARALLEL_PROBES = 4;
+
+    /**
+     * Upper bound for the whole index probe stage, regardless of how many candidates there are
+     */
+    private static final long PROBE_DEADLINE_MS = 20_000;
+
+    private static final ExecutorService PROBE_EXECUTOR = Executors.newFixedThreadPool(MAX_PARALLEL_PROBES);
+
+    private final CoverHttpClient mHttp;
+    private final ReleaseGroupIndex mAlbumIndex;
+    private final CoverIndexCache mIndexCache;
+    private final QueryPlanStats mStats;
+    private final CoverBlobStore mKnownCovers;
+    private final Uri mMusicBrainz;
+    private final Uri mCoverArtArchive;
+
+    /**
+     * @param http shared http client to perform requests with
+     * @param albumIndex index of resolved albums, enables album-level resolution. Can be null
+     * @param indexCache cache of cover art archive index answers, enables conditional requests. Can be null
+     * @param knownCovers store to download images into and look up already downloaded ones
+     * @param stats counters of query plan stages to record lookups in. Can be null
+     */
+    public CoverArchiveEngine(CoverHttpClient http, ReleaseGroupIndex albumIndex, CoverIndexCache indexCache,
+                              CoverBlobStore knownCovers, QueryPlanStats stats) {
+        this(http, albumIndex, indexCache, knownCovers, stats, MUSICBRAINZ_ENDPOINT, COVERARTARCHIVE_ENDPOINT);
+    }
+
+    /**
+     * Create engine that talks to custom endpoints, e.g. mirrors or local stub server
+     *
+     * @param http shared http client to perform requests with
+     * @param albumIndex index of resolved albums, enables album-level resolution. Can be null
+     * @param indexCache cache of cover art archive index answers, enables conditional requests. Can be null
+     * @param knownCovers store to download images into and look up already downloaded ones
+     * @param stats counters of query plan stages to record lookups in. Can be null
+     * @param musicBrainz base url of musicbrainz web service, e.g. {@code https://musicbrainz.org}
+     * @param coverArtArchive base url of cover art archive, e.g. {@code https://coverartarchive.org}
+     */
+    public CoverArchiveEngine(CoverHttpClient http, ReleaseGroupIndex albumIndex, CoverIndexCache indexCache,
+                              CoverBlobStore knownCovers, QueryPlanStats stats, String musicBrainz, String coverArtArchive) {
+        mHttp = http;
+        mAlbumIndex = albumIndex;
+        mIndexCache = indexCache;
+        mStats = stats;
+        mKnownCovers = knownCovers;
+        mMusicBrainz = Uri.parse(musicBrainz);
+        mCoverArtArchive = Uri.parse(coverArtArchive);
+    }
 
-            // cover can be found by artist + album
-            if (artistName != null && albumName != null) {
-                return makeApiCall(String.format("releasegroup:%s AND artistname:%s", albumName, artistName));
+    @Override
+    public File getCover(CoverRequest request) throws IOException {
+        String albumKey = request.getAlbum() != null ? CoverKeys.albumKey(request.getArtist(), request.getAlbum()) : null;
+
+        if (albumKey != null && mAlbumIndex != null && !request.isSkipCache()) {
+            // album-level resolution, all tracks of the album share the release group
+            File cover = getKnownAlbumCover(request, albumKey);
+            if (cover != null) {
+                return cover;
             }
+        }
 
-            // even then track gives us pretty good idea what can it be
-            return makeApiCall(String.format("recording:%s", trackName));
-        } catch (IOException e) {
-            Log.w(TAG, "Couldn't connect to musicbrainz/coverartarchive REST endpoints", e);
+        Hit best = runPlan(request);
+        if (best == null) {
             return null;
-        } catch (JSONException e) {
-            Log.w(TAG, "Couldn't transform API answer to JSON entity", e);
+        }
+
+        if (best.stage == Stage.RELEASE_GROUP && mAlbumIndex != null) {
+            mAlbumIndex.put(albumKey, best.mbid);
+        }
+        return downloadImage(request, best.imageUrl);
+    }
+
+    /**
+     * Get cover of the album if it was resolved before, its release group is taken from
+     * the index and search is skipped altogether.
+     *
+     * @param request cover request with album set
+     * @param albumKey canonical key of the album
+     * @return temporary file with the cover or null if album wasn't resolved or its cover is gone
+     * @throws IOException in case of connect problems
+     */
+    private File getKnownAlbumCover(CoverRequest request, String albumKey) throws IOException {
+        String knownMbid = mAlbumIndex.get(albumKey);
+        if (knownMbid == null) {
             return null;
         }
+
+        String imageUrl = new IndexProbe(request, knownMbid).call();
+        if (imageUrl != null) {
+            return downloadImage(request, imageUrl);
+        }
+
+        // cover was removed or release group was merged, resolve again
+        mAlbumIndex.remove(albumKey);
+        return null;
     }
 
     /**
-     * First call
+     * Run applicable stages of the query plan in order until one of them finds a confident match,
+     * the request budget is exhausted or the request is cancelled. If no match was confident,
+     * the best of the found ones is picked.
+     *
+     * @param request cover request
+     * @return best match found or null if none of the stages found anything
+     * @throws IOException in case of connect problems, if musicbrainz is down, or if cover art archive
+     *                     failed for some of the candidates and no stage found anything else
      */
-    private byte[] makeApiCall(String query) throws IOException, JSONException {
-        HttpsURLConnection apiCall = null;
-        try {
-            // build query
-            // e.g. https://musicbrainz.org/ws/2/work/?query=releasegroup:new%20divide%20AND%20artist:linkin%20park&limit=3&fmt=json
-            Uri link = new Uri.Builder()
-                    .scheme("https")
-                    .authority("musicbrainz.org")
-                    .path("ws/2/" + "release-group" + '/')
-                    .appendQueryParameter("query", query)
-                    .appendQueryParameter("limit", "3")
-                    .appendQueryParameter("fmt", "json")
-                    .build();
+    private Hit runPlan(CoverRequest request) throws IOException {
+        Hit best = null;
+        IOException probeError = null;
+        int budget = MAX_REQUESTS_PER_LOOKUP;
+        for (Stage stage : Stage.values()) {
+            SearchQuery query = stage.queryFor(request);
+            if (query == null || query.isEmpty()) {
+                continue;
+            }
+
+            // stage costs at least a search and a probe
+            if (budget < 2 || request.isCancelled() || request.getRemainingMs() == 0) {
+                break;
+            }
 
-            // construct an http request
-            apiCall = (HttpsURLConnection) new URL(link.toString()).openConnection();
-            apiCall.setRequestProperty("User-Agent", USER_AGENT);
-            apiCall.setReadTimeout(10_000);
-            apiCall.setConnectTimeout(15_000);
+            int probes = Math.min(stage.maxProbes, budget - 1);
+            String expectedTitle = stage == Stage.RELEASE_GROUP ? request.getAlbum() : null;
+            List<ReleaseGroupParser.Candidate> relGroups = searchReleaseGroups(request, query, expectedTitle, stage.searchLimit, probes);
+            int spent = 1 + (relGroups == null ? 0 : relGroups.size());
+            budget -= spent;
 
-            // execute
-            apiCall.connect();
-            int response = apiCall.getResponseCode();
-            if (response != HttpsURLConnection.HTTP_OK) {
+            IndexProbe found = null;
+            if (relGroups != null) {
+                try {
+                    found = findBestImage(request, relGroups);
+                } catch (IOException e) {
+                    if (request.isCancelled() || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+
+                    // candidates of the next stage may be probed just fine
+                    Log.w(TAG, "Cover art archive probes failed at stage " + stage.name(), e);
+                    probeError = e;
+                }
+            }
+            Hit hit = null;
+            if (found != null) {
+                for (ReleaseGroupParser.Candidate relGroup : relGroups) {
+                    if (relGroup.mbid.equals(found.getMbid())) {
+                        double confidence = ReleaseGroupRanker.confidence(relGroup, expectedTitle, request.getArtist());
+                        hit = new Hit(stage, found.getMbid(), found.getImageUrl(), confidence);
+                        break;
+                    }
+                }
+            }
+
+            boolean confident = hit != null && hit.confidence >= CONFIDENT_MATCH;
+            if (mStats != null) {
+                mStats.record(stage.name(), spent, hit != null, confident);
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    // formatting stats is not free, this runs on every stage of every lookup
+                    Log.d(TAG, mStats.describe(stage.name()));
+                }
+            }
+
+            if (hit != null && (best == null || hit.confidence > best.confidence)) {
+                best = hit;
+            }
+            if (confident) {
+                break;
+            }
+        }
+
+        if (best == null && probeError != null) {
+            // some of the candidates may have had a cover, we just couldn't retrieve it
+            throw probeError;
+        }
+        return best;
+    }
+
+    /**
+     * Search musicbrainz for release groups matching the query and rank them by similarity to the request.
+     * Only the best ones are returned, they are the ones worth probing for covers.
+     *
+     * @param request cover request this search is made for
+     * @param query search query, see https://musicbrainz.org/doc/MusicBrainz_API/Search#Release_Group
+     * @param expectedTitle release group title to rank by, e.g. album name. Null if unknown
+     * @param searchLimit how many release groups to request from musicbrainz
+     * @param maxCandidates how many of the best-ranked release groups to return
+     * @return found release groups in order of rank or null if search failed
+     * @throws IOException in case of connect problems or if musicbrainz is down
+     */
+    private List<ReleaseGroupParser.Candidate> searchReleaseGroups(CoverRequest request, SearchQuery query, String expectedTitle,
+                                                                   int searchLimit, int maxCandidates) throws IOException {
+        // build query
+        // e.g. https://musicbrainz.org/ws/2/release-group/?query=releasegroup:(new divide) AND artistname:(linkin park)&limit=8&fmt=json
+        Uri link = mMusicBrainz.buildUpon()
+                .appendEncodedPath("ws/2/" + "release-group" + '/')
+                .appendQueryParameter("query", query.toString())
+                .appendQueryParameter("limit", String.valueOf(searchLimit))
+                .appendQueryParameter("fmt", "json")
+                .build();
+
+        // execute
+        return mHttp.get(request, link.toString(), response -> {
+            if (CoverHttpClient.isTransientFailure(response)) {
+                // server is overloaded or down, this is not a "not found" answer
+                throw new IOException("Musicbrainz search failed with code " + response.code());
+            }
+
+            if (!response.isSuccessful()) {
                 // redirects are handled internally, this is clearly an error
                 return null;
             }
 
-            InputStream is = apiCall.getInputStream();
-            String reply = new String(PluginUtils.readFully(is), "UTF-8");
-            JSONObject searchContent = new JSONObject(reply);
-            if (!searchContent.has("release-groups"))
-                return null;
+            List<ReleaseGroupParser.Candidate> found = ReleaseGroupParser.parse(response.body().byteStream(), searchLimit);
+            List<ReleaseGroupParser.Candidate> ranked = ReleaseGroupRanker.rank(found, expectedTitle, request.getArtist());
+            return ranked.size() > maxCandidates ? ranked.subList(0, maxCandidates) : ranked;
+        });
+    }
+
+    /**
+     * Query cover art archive index for every distinct release group and pick the front image
+     * of the best-ranked one that has it, see {@link ReleaseGroupRanker}.
+     * <p/>
+     * Index probes run in parallel (at most {@link #MAX_PARALLEL_PROBES} at a time) and the whole
+     * stage is limited by {@link #PROBE_DEADLINE_MS}. As soon as the best possible candidate is known
+     * the rest of the probes are cancelled.
+     *
+     * @param request cover request this lookup is made for
+     * @param relGroups release groups returned by musicbrainz API call
+     * @return resolved probe of the best matching release group that has front image or null if none of them has it
+     * @throws IOException   in case of encoding/connect problems
+     */
+    private IndexProbe findBestImage(CoverRequest request, List<ReleaseGroupParser.Candidate> relGroups) throws IOException {
+        Set<String> mbids = new LinkedHashSet<>();
+        for (ReleaseGroupParser.Candidate relGroup : relGroups) {
+            mbids.add(relGroup.mbid);
+        }
+
+        if (mbids.isEmpty()) {
+            return null;
+        }
+
+        CompletionService<String> probes = new ExecutorCompletionService<>(PROBE_EXECUTOR);
+        List<IndexProbe> ranked = new ArrayList<>(mbids.size());
+        List<Future<String>> pending = new ArrayList<>(mbids.size());
+        for (String mbid : mbids) {
+            IndexProbe probe = new IndexProbe(request, mbid);
+            ranked.add(probe);
+            pending.add(probes.submit(probe));
+        }
+
+        long deadline = System.currentTimeMillis() + Math.min(PROBE_DEADLINE_MS, request.getRemainingMs());
+        try {
+            for (int i = 0; i < pending.size(); ++i) {
+                long remaining = deadline - System.currentTimeMillis();
+                Future<String> done = remaining > 0 ? probes.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    throw new IOException("Cover art archive probes timed out");
+                }
 
-            JSONArray relGroups = searchContent.getJSONArray("release-groups");
-            return getRandomImage(relGroups);
+                // walk candidates from the best one, stop at first that's not resolved yet
+                Iterator<IndexProbe> it = ranked.iterator();
+                while (it.hasNext()) {
+                    IndexProbe candidate = it.next();
+                    if (!candidate.isDone()) {
+                        break;
+                    }
+
+                    if (candidate.getImageUrl() != null) {
+                        return candidate;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for cover probes");
         } finally {
-            if (apiCall != null) {
-                apiCall.disconnect();
+            // we either have the winner or gave up, don't waste traffic on the rest
+            for (Future<String> future : pending) {
+                future.cancel(true);
+            }
+            for (IndexProbe probe : ranked) {
+                probe.abort();
+            }
+        }
+
+        for (IndexProbe probe : ranked) {
+            if (probe.getError() != null) {
+                // some of the candidates may have had a cover, we just couldn't retrieve it
+                throw probe.getError();
             }
         }
+        return null;
     }
 
     /**
-     * Retrieve random available image from retrieved release-groups
+     * Get the chosen image, either from the store if it was downloaded before for some other lookup,
+     * or from the network. Downloaded image is moved to the store right away, so its url is remembered.
      *
-     * @param relGroups array of release groups returned by musicbrainz API call
-     * @return byte array with content of first found image for these release-groups or null if nothing found
-     * @throws JSONException in case musicbrainz answer differs from wiki page
-     * @throws IOException   in case of encoding/connect problems
+     * @param request cover request this download is made for
+     * @param imageUrl url of the image as returned in cover art archive index
+     * @return stored or temporary file with image content or null if it disappeared in the meantime or is too large
+     * @throws IOException in case of connect or write problems
      */
-    private byte[] getRandomImage(JSONArray relGroups) throws JSONException, IOException {
-        if (relGroups.length() == 0) {
+    private File downloadImage(CoverRequest request, String imageUrl) throws IOException {
+        File known = mKnownCovers.getBySource(imageUrl);
+        if (known != null) {
+            // same image as some other album has, e.g. another edition
+            return known;
+        }
+
+        File spooled = spoolImage(request, imageUrl);
+        if (spooled == null) {
             return null;
         }
 
-        Random rand = new Random();
-        // try 15 random release groups
-        for (int i = 0; i < 15; ++i) {
-            int idx = rand.nextInt(relGroups.length());
-            JSONObject relGroup = relGroups.getJSONObject(idx);
-            String mbid = relGroup.getString("id"); // musicbrainz ID, must be present and in UUID form
+        File stored = mKnownCovers.put(spooled, imageUrl);
+        return stored != null ? stored : spooled;
+    }
+
+    /**
+     * Stream the body of the image into a file in spool directory. Cover art archive
+     * redirects image requests to archive.org, redirects are followed by http client.
+     * <p/>
+     * Images larger than {@link #MAX_IMAGE_BYTES} ({@link #MAX_ORIGINAL_BYTES} for originals)
+     * or than {@link CoverRequest#getMaxImageBytes()} are rejected,
+     * either upfront by their {@code Content-Length} or while streaming if server didn't tell the size.
+     *
+     * @param request cover request this download is made for
+     * @param imageUrl url of the image as returned in cover art archive index
+     * @return temporary file with image content or null if it disappeared in the meantime or is too large
+     * @throws IOException in case of connect or write problems
+     */
+    private File spoolImage(CoverRequest request, String imageUrl) throws IOException {
+        File spoolDir = mKnownCovers.getSpoolDir();
+        long maxBytes = Math.min(request.getMaxImageBytes(),
+                request.getResolution() == CoverResolution.ORIGINAL ? MAX_ORIGINAL_BYTES : MAX_IMAGE_BYTES);
+        return mHttp.get(request, imageUrl, response -> {
+            if (CoverHttpClient.isTransientFailure(response)) {
+                throw new IOException("Cover image download failed with code " + response.code());
+            }
 
-            HttpURLConnection imgCall = null;
-            try {
-                // e.g. http://coverartarchive.org/release-group/4741866d-c3a5-47ca-944d-732c2cc9e651/front-500
-                Uri imgLink = new Uri.Builder().scheme("https")
-                        .authority("coverartarchive.org")
-                        .path("release-group")
-                        .appendPath(mbid)
-                        .appendPath("front-500")
-                        .build();
-
-                imgCall = (HttpURLConnection) new URL(imgLink.toString()).openConnection();
-                imgCall.setRequestProperty("User-Agent", USER_AGENT);
-                imgCall.setReadTimeout(10_000);
-                imgCall.setConnectTimeout(15_000);
-
-                // execute
-                imgCall.connect();
-                int imgRespCode = imgCall.getResponseCode();
-                if (imgRespCode != HttpsURLConnection.HTTP_OK) {
-                    // redirects are handled internally, this is clearly an error
-                    continue;
+            if (!response.isSuccessful()) {
+                return null;
+            }
+
+            ResponseBody body = response.body();
+            if (body.contentLength() > maxBytes) {
+                Log.w(TAG, "Cover image is too large, skipping: " + body.contentLength() + " bytes at " + imageUrl);
+                return null;
+            }
+
+            if (!spoolDir.exists() && !spoolDir.mkdirs()) {
+                throw new IOException("Couldn't create spool dir for covers! Path " + spoolDir);
+            }
+
+            File spooled = File.createTempFile("cover", ".part", spoolDir);
+            boolean complete = false;
+            try (InputStream is = body.byteStream(); OutputStream os = new FileOutputStream(spooled)) {
+                byte[] buffer = new byte[8192];
+                long total = 0;
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    total += read;
+                    if (total > maxBytes) {
+                        Log.w(TAG, "Cover image exceeded size limit while downloading, skipping: " + imageUrl);
+                        return null;
+                    }
+                    os.write(buffer, 0, read);
+                }
+                complete = true;
+                return spooled;
+            } finally {
+                if (!complete) {
+                    spooled.delete();
                 }
+            }
+        });
+    }
+
+    /**
+     * Single request to cover art archive index of the release group. Can be aborted from another thread,
+     * in which case underlying call is cancelled and blocked read fails immediately.
+     */
+    private class IndexProbe implements Callable<String> {
+
+        private final CoverRequest mRequest;
+        private final String mMbid;
+        private volatile Call mIndexCall;
+        private volatile boolean mAborted;
+
+        private volatile boolean mDone;
+        private volatile String mImageUrl;
+        private volatile IOException mError;
+
+        private IndexProbe(CoverRequest request, String mbid) {
+            mRequest = request;
+            mMbid = mbid;
+        }
 
-                InputStream imgStream = imgCall.getInputStream();
-                return PluginUtils.readFully(imgStream);
+        @Override
+        public String call() throws IOException {
+            // probe pool is shared with interactive lookups, don't compete with them for CPU
+            int priority = Process.getThreadPriority(Process.myTid());
+            if (mRequest.isBackground()) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+
+            try {
+                mImageUrl = queryIndex();
+                return mImageUrl;
+            } catch (IOException e) {
+                if (!mAborted) {
+                    // if closed from outside nobody waits for this result anymore
+                    mError = e;
+                }
+                throw e;
             } finally {
-                if (imgCall != null) {
-                    imgCall.disconnect();
+                mDone = true;
+                abort();
+                Process.setThreadPriority(priority);
+            }
+        }
+
+        private String queryIndex() throws IOException {
+            if (mAborted) {
+                return null;
+            }
+
+            // e.g. https://coverartarchive.org/release-group/4741866d-c3a5-47ca-944d-732c2cc9e651
+            Uri indexLink = mCoverArtArchive.buildUpon()
+                    .appendPath("release-group")
+                    .appendPath(mMbid)
+                    .build();
+
+            // index was seen before, only ask whether it changed since then
+            CoverIndexCache.Entry cached = mIndexCache != null ? mIndexCache.getIndex(mMbid) : null;
+            mIndexCall = cached != null
+                    ? mHttp.newCall(indexLink.toString(), cached.etag, cached.lastModified)
+                    : mHttp.newCall(indexLink.toString());
+            if (mAborted) {
+                // aborted while we were creating the call
+                return null;
+            }
+
+            return mHttp.execute(mRequest, mIndexCall, response -> {
+                try {
+                    if (response.code() == HTTP_NOT_MODIFIED && cached != null) {
+                        JSONObject front = cached.frontImage != null ? new JSONObject(cached.frontImage) : null;
+                        return frontImageUrl(front, mRequest.getResolution());
+                    }
+
+                    if (CoverHttpClient.isTransientFailure(response)) {
+                        throw new IOException("Cover art archive index failed with code " + response.code());
+                    }
+
+                    if (!response.isSuccessful()) {
+                        // 404 - no art for this release group at all
+                        return null;
+                    }
+
+                    JSONObject front = findFrontImage(new JSONObject(response.body().string()));
+                    String etag = response.header("ETag");
+                    String lastModified = response.header("Last-Modified");
+                    if (mIndexCache != null && (etag != null || lastModified != null)) {
+                        mIndexCache.putIndex(mMbid, new CoverIndexCache.Entry(etag, lastModified, front != null ? front.toString() : null));
+                    }
+                    return frontImageUrl(front, mRequest.getResolution());
+                } catch (JSONException e) {
+                    throw new IOException("Couldn't parse cover art archive index", e);
                 }
+            });
+        }
+
+        private String getMbid() {
+            return mMbid;
+        }
+
+        private boolean isDone() {
+            return mDone;
+        }
+
+        private String getImageUrl() {
+            return mImageUrl;
+        }
+
+        private IOException getError() {
+            return mError;
+        }
+
+        private void abort() {
+            mAborted = true;
+            Call indexCall = mIndexCall;
+            if (indexCall != null) {
+                indexCall.cancel();
+            }
+        }
+    }
+
+    /**
+     * Find front image in cover art archive index document.
+     *
+     * @param index index answer, see https://musicbrainz.org/doc/Cover_Art_Archive/API
+     * @return front image entry, with image url and thumbnails. Null if there's no front image in the index.
+     */
+    private static JSONObject findFrontImage(JSONObject index) {
+        JSONArray images = index.optJSONArray("images");
+        if (images == null) {
+            return null;
+        }
+
+        for (int i = 0; i < images.length(); ++i) {
+            JSONObject image = images.optJSONObject(i);
+            if (image != null && image.optBoolean("front")) {
+                return image;
             }
         }
         return null;
     }
+
+    /**
+     * Pick url of the front image in preferred size
+     *
+     * @param image front image entry of the index, can be null
+     * @param resolution preferred size of the image
+     * @return url of the thumbnail of requested size, of the largest smaller one if it's missing,
+     *         or of the full image if there are no suitable thumbnails. Null if there's no front image.
+     */
+    private static String frontImageUrl(JSONObject image, CoverResolution resolution) {
+        if (image == null) {
+            return null;
+        }
+
+        JSONObject thumbnails = image.optJSONObject("thumbnails");
+        if (thumbnails != null && resolution != CoverResolution.ORIGINAL) {
+            // older images don't have 1200px thumbnails, step down to smaller ones
+            CoverResolution[] sizes = CoverResolution.values();
+            for (int size = resolution.ordinal(); size >= 0; --size) {
+                String thumb = thumbnails.optString(sizes[size].getThumbnailKey(), null);
+                if (thumb == null && sizes[size].getLegacyKey() != null) {
+                    thumb = thumbnails.optString(sizes[size].getLegacyKey(), null);
+                }
+                if (thumb != null) {
+                    return thumb;
+                }
+            }
+        }
+        return image.optString("image", null);
+    }
 }
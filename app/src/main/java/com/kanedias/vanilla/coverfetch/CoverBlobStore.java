@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk store of fetched covers. Covers are kept as blobs named by the hash of their content,
+ * lookup keys (see {@link CoverKeys}) and source urls only point to them. The same artwork turns up
+ * for compilations, different editions of an album or albums resolved to the same release group,
+ * and is stored only once no matter how many keys it has.
+ * <p/>
+ * Only byte-exact copies are collapsed. Images that merely look alike are kept apart: plain or
+ * text-on-flat-background covers of different albums are alike to any cheap perceptual measure.
+ * <p/>
+ * The index is kept in memory in LRU order of blobs and persisted as append-only log, compacted on load.
+ * When total size of blobs exceeds the budget, least recently used ones are evicted along with all their keys.
+ * <p/>
+ * Blobs are shared with other apps right from the store through file provider, see {@link #pin(File, long)}.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CoverBlobStore {
+
+    private static final String TAG = CoverBlobStore.class.getSimpleName();
+
+    private static final String BLOBS_DIR = "blobs";
+    private static final String SPOOL_DIR = "spool";
+    private static final String INDEX_FILE = "index";
+
+    /**
+     * Stored cover, size is taken from the file
+     */
+    private static class Blob {
+
+        private final long size;
+
+        private Blob(long size) {
+            this.size = size;
+        }
+    }
+
+    private final File mDir;
+    private final File mBlobDir;
+    private final File mLogFile;
+    private final long mMaxBytes;
+
+    /**
+     * Content hash to blob. Iteration order is from least to most recently used
+     */
+    private final LinkedHashMap<String, Blob> mBlobs = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * Hashed lookup key to content hash
+     */
+    private final Map<String, String> mKeys = new HashMap<>();
+
+    /**
+     * Source url of the image to content hash, lets network engines skip downloads of known images
+     */
+    private final Map<String, String> mSources = new HashMap<>();
+
+    /**
+     * Content hash to the time until which the blob must not be evicted
+     */
+    private final Map<String, Long> mPins = new HashMap<>();
+
+    private long mTotalBytes;
+    private int mLogLines;
+
+    /**
+     * @param dir directory to store covers in, is created if missing
+     * @param maxBytes size budget for all stored covers
+     */
+    public CoverBlobStore(File dir, long maxBytes) {
+        mDir = dir;
+        mBlobDir = new File(dir, BLOBS_DIR);
+        mLogFile = new File(dir, INDEX_FILE);
+        mMaxBytes = maxBytes;
+
+        loadIndex();
+    }
+
+    /**
+     * @return directory for engines to download covers into before they are moved to the store.
+     *         It's on the same filesystem, so moving is a rename, not a copy
+     */
+    public File getSpoolDir() {
+        return new File(mDir, SPOOL_DIR);
+    }
+
+    /**
+     * @param file any file
+     * @return true if the file is a blob of this store
+     */
+    public boolean isStored(File file) {
+        return mBlobDir.equals(file.getParentFile());
+    }
+
+    /**
+     * @param key hashed lookup key
+     * @return stored cover for the key or null if there's none
+     */
+    public File get(String key) {
+        String hash;
+        synchronized (this) {
+            hash = mKeys.get(key);
+        }
+        return hash == null ? null : touch(hash);
+    }
+
+    /**
+     * @param sourceUrl url the image was downloaded from
+     * @return stored cover downloaded from this url or null if there's none
+     */
+    public File getBySource(String sourceUrl) {
+        String hash;
+        synchronized (this) {
+            hash = mSources.get(sourceUrl);
+        }
+        return hash == null ? null : touch(hash);
+    }
+
+    /**
+     * Move fetched cover into the store. If the same cover is already there,
+     * fetched file is deleted and stored one is returned instead.
+     *
+     * @param fetched fetched cover, in the spool directory or already in the store
+     * @param sourceUrl url the image was downloaded from, can be null
+     * @return stored cover or null if it couldn't be stored, fetched file is left intact then
+     */
+    public File put(File fetched, String sourceUrl) {
+        if (isStored(fetched)) {
+            // already stored, e.g. found by source url
+            return fetched;
+        }
+
+        long size = fetched.length();
+        if (size > mMaxBytes) {
+            // would evict the whole store and still not fit
+            return null;
+        }
+
+        String hash;
+        try {
+            hash = contentHash(fetched);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't hash fetched cover. Path " + fetched, e);
+            return null;
+        }
+
+        synchronized (this) {
+            if (mBlobs.containsKey(hash)) {
+                Log.d(TAG, "Fetched cover is already stored as " + hash + ", dropping it");
+                if (!fetched.delete()) {
+                    Log.w(TAG, "Couldn't delete duplicate cover! Path " + fetched);
+                }
+                addSource(sourceUrl, hash);
+                return touch(hash);
+            }
+
+            if (!mBlobDir.exists() && !mBlobDir.mkdirs()) {
+                Log.e(TAG, "Couldn't create dir for cover blobs! Path " + mBlobDir);
+                return null;
+            }
+
+            File blob = new File(mBlobDir, hash);
+            if (!fetched.renameTo(blob)) {
+                Log.w(TAG, "Couldn't move cover into store. Path " + blob);
+                return null;
+            }
+
+            Blob stored = new Blob(size);
+            mBlobs.put(hash, stored);
+            mTotalBytes += size;
+            append(formatBlob(hash));
+            addSource(sourceUrl, hash);
+            trimToSize();
+            return blob;
+        }
+    }
+
+    /**
+     * Stream cover that is not a file yet into the store, e.g. converted one
+     *
+     * @param content cover content, closed when done
+     * @return stored cover
+     * @throws IOException if content couldn't be read or stored
+     */
+    public File put(InputStream content) throws IOException {
+        File spoolDir = getSpoolDir();
+        if (!spoolDir.exists() && !spoolDir.mkdirs()) {
+            content.close();
+            throw new IOException("Couldn't create spool dir for covers! Path " + spoolDir);
+        }
+
+        File spooled = File.createTempFile("put", ".part", spoolDir);
+        try (InputStream is = content; OutputStream os = new FileOutputStream(spooled)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            spooled.delete();
+            throw e;
+        }
+
+        File stored = put(spooled, null);
+        if (stored == null) {
+            spooled.delete();
+            throw new IOException("Couldn't store cover, see log for details");
+        }
+        return stored;
+    }
+
+    /**
+     * Keep stored cover from eviction for a while, e.g. when it's shared with other app that reads it later
+     *
+     * @param blob stored cover
+     * @param durationMs how long to keep it at least
+     * @return stored cover or null if it's not in the store (anymore)
+     */
+    public File pin(File blob, long durationMs) {
+        if (!isStored(blob)) {
+            return null;
+        }
+
+        String hash = blob.getName();
+        synchronized (this) {
+            if (!mBlobs.containsKey(hash)) {
+                return null;
+            }
+            mPins.put(hash, System.currentTimeMillis() + durationMs);
+        }
+        return touch(hash);
+    }
+
+    /**
+     * Store fetched cover under the lookup key
+     *
+     * @param key hashed lookup key
+     * @param fetched fetched cover, in the spool directory or already in the store
+     * @return stored cover, fetched file itself if it couldn't be stored
+     *         or null if it was evicted right away by concurrent stores
+     */
+    public File put(String key, File fetched) {
+        File blob = put(fetched, null);
+        if (blob == null) {
+            return fetched;
+        }
+
+        synchronized (this) {
+            String hash = blob.getName();
+            if (!mBlobs.containsKey(hash)) {
+                // evicted in the meantime by a concurrent store, file is gone
+                return null;
+            }
+
+            if (!hash.equals(mKeys.put(key, hash))) {
+                append("K\t" + hash + '\t' + key + '\n');
+            }
+        }
+        return blob;
+    }
+
+    /**
+     * @return stored cover with its access time refreshed or null if it's gone
+     */
+    private File touch(String hash) {
+        synchronized (this) {
+            if (mBlobs.get(hash) == null) {
+                // get() also marks entry as most recently used
+                return null;
+            }
+        }
+
+        File blob = new File(mBlobDir, hash);
+        if (!blob.canRead()) {
+            Log.w(TAG, "Stored cover is unreadable, dropping it. Path " + blob);
+            synchronized (this) {
+                removeBlob(hash);
+            }
+            return null;
+        }
+
+        // bump modification time so LRU order survives process restart
+        if (!blob.setLastModified(System.currentTimeMillis())) {
+            Log.w(TAG, "Couldn't update access time of stored cover " + blob);
+        }
+        return blob;
+    }
+
+    /**
+     * @return true if blob is pinned and the pin has not expired yet
+     */
+    private boolean isPinned(String hash) {
+        Long until = mPins.get(hash);
+        if (until == null) {
+            return false;
+        }
+
+        if (until <= System.currentTimeMillis()) {
+            mPins.remove(hash);
+            return false;
+        }
+        return true;
+    }
+
+    private void addSource(String sourceUrl, String hash) {
+        if (sourceUrl != null && !hash.equals(mSources.put(sourceUrl, hash))) {
+            append("S\t" + hash + '\t' + sourceUrl + '\n');
+        }
+    }
+
+    private void removeBlob(String hash) {
+        Blob removed = mBlobs.remove(hash);
+        if (removed != null) {
+            mTotalBytes -= removed.size;
+        }
+
+        dropReferences(hash);
+        mPins.remove(hash);
+        append("D\t" + hash + '\n');
+
+        File blob = new File(mBlobDir, hash);
+        if (blob.exists() && !blob.delete()) {
+            Log.w(TAG, "Couldn't delete stored cover! Path " + blob);
+        }
+    }
+
+    private void dropReferences(String hash) {
+        Collection<String> singleton = Collections.singleton(hash);
+        mKeys.values().removeAll(singleton);
+        mSources.values().removeAll(singleton);
+    }
+
+    /**
+     * Evict least recently used covers until total size fits the budget
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Blob>> it = mBlobs.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, Blob> eldest = it.next();
+            String hash = eldest.getKey();
+            if (!it.hasNext()) {
+                // never evict the most recent entry, it's likely being returned right now
+                break;
+            }
+
+            if (isPinned(hash)) {
+                // other app may be reading it
+                continue;
+            }
+            File blob = new File(mBlobDir, hash);
+            if (blob.exists() && !blob.delete()) {
+                Log.w(TAG, "Couldn't evict stored cover! Path " + blob);
+            }
+
+            mTotalBytes -= eldest.getValue().size;
+            it.remove();
+            dropReferences(hash);
+            append("D\t" + hash + '\n');
+        }
+    }
+
+    /**
+     * Load the log, then reconcile it with blobs actually present on disk. Files that were accessed
+     * recently have their modification time bumped, so sorting by it restores LRU order.
+     */
+    private synchronized void loadIndex() {
+        if (!mBlobDir.exists() && !mBlobDir.mkdirs()) {
+            Log.e(TAG, "Couldn't create dir for cover blobs! Path " + mBlobDir);
+            return;
+        }
+
+        cleanLeftovers();
+
+        Map<String, Blob> logged = readLog();
+
+        File[] stored = mBlobDir.listFiles();
+        if (stored != null) {
+            List<File> byAge = new ArrayList<>(Arrays.asList(stored));
+            Collections.sort(byAge, (f1, f2) -> f1.lastModified() < f2.lastModified() ? -1 : (f1.lastModified() == f2.lastModified() ? 0 : 1));
+            for (File blob : byAge) {
+                Blob known = logged.get(blob.getName());
+                if (known == null || !blob.isFile()) {
+                    // written, but process died before it was logged
+                    blob.delete();
+                    continue;
+                }
+
+                mBlobs.put(blob.getName(), new Blob(blob.length()));
+                mTotalBytes += blob.length();
+            }
+        }
+
+        // blobs may have been deleted by the system when it was low on storage
+        mKeys.values().retainAll(mBlobs.keySet());
+        mSources.values().retainAll(mBlobs.keySet());
+
+        if (mLogLines > 2 * (mBlobs.size() + mKeys.size() + mSources.size()) + 64) {
+            compact();
+        }
+
+        trimToSize();
+    }
+
+    /**
+     * Delete leftovers in spool directory, e.g. downloads interrupted by process death.
+     * Also deletes covers of
+     * the older cache layout that were stored right in the cache directory, named by their key.
+     */
+    private void cleanLeftovers() {
+        List<File> leftovers = new ArrayList<>();
+        File[] spooled = getSpoolDir().listFiles();
+        if (spooled != null) {
+            leftovers.addAll(Arrays.asList(spooled));
+        }
+
+        File[] legacy = mDir.listFiles();
+        if (legacy != null) {
+            for (File file : legacy) {
+                if (file.isFile() && !file.equals(mLogFile)) {
+                    leftovers.add(file);
+                }
+            }
+        }
+
+        for (File leftover : leftovers) {
+            if (!leftover.delete()) {
+                Log.w(TAG, "Couldn't delete leftover cover file! Path " + leftover);
+            }
+        }
+    }
+
+    /**
+     * Replay the log, later lines override earlier ones. Fills keys and sources,
+     * blobs are returned separately to be checked against the disk.
+     */
+    private Map<String, Blob> readLog() {
+        Map<String, Blob> logged = new HashMap<>();
+        if (!mLogFile.exists()) {
+            return logged;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mLogFile), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mLogLines++;
+
+                // format: type \t content hash [\t key or url]
+                String[] parts = line.split("\t", 3);
+                switch (parts[0]) {
+                    case "B":
+                        // older entries may carry fields after the hash, they are of no use now
+                        logged.put(parts[1], new Blob(0));
+                        break;
+                    case "K":
+                        mKeys.put(parts[2], parts[1]);
+                        break;
+                    case "S":
+                        mSources.put(parts[2], parts[1]);
+                        break;
+                    case "D":
+                        logged.remove(parts[1]);
+                        dropReferences(parts[1]);
+                        break;
+                    default:
+                        throw new IOException("Unknown cover index entry: " + line);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cover index is corrupted, starting from scratch", e);
+            logged.clear();
+            mKeys.clear();
+            mSources.clear();
+            mLogLines = 0;
+            if (!mLogFile.delete()) {
+                Log.w(TAG, "Couldn't delete corrupted cover index. Path " + mLogFile);
+            }
+        }
+        return logged;
+    }
+
+    private void append(String line) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(mLogFile, true), "UTF-8")) {
+            writer.write(line);
+            mLogLines++;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't persist cover index entry", e);
+        }
+    }
+
+    private void compact() {
+        File compacted = new File(mLogFile.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(compacted), "UTF-8")) {
+            for (Map.Entry<String, Blob> entry : mBlobs.entrySet()) {
+                writer.write(formatBlob(entry.getKey()));
+            }
+            for (Map.Entry<String, String> entry : mKeys.entrySet()) {
+                writer.write("K\t" + entry.getValue() + '\t' + entry.getKey() + '\n');
+            }
+            for (Map.Entry<String, String> entry : mSources.entrySet()) {
+                writer.write("S\t" + entry.getValue() + '\t' + entry.getKey() + '\n');
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't compact cover index", e);
+            compacted.delete();
+            return;
+        }
+
+        if (!compacted.renameTo(mLogFile)) {
+            Log.w(TAG, "Couldn't replace cover index with compacted one. Path " + mLogFile);
+            compacted.delete();
+            return;
+        }
+        mLogLines = mBlobs.size() + mKeys.size() + mSources.size();
+    }
+
+    private static String formatBlob(String hash) {
+        return "B\t" + hash + '\n';
+    }
+
+    private static String contentHash(File file) throws IOException {
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Android device must have SHA-1
+            throw new IllegalStateException("SHA-1 digest is not available", e);
+        }
+
+        try (InputStream is = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                sha1.update(buffer, 0, read);
+            }
+        }
+        return CoverKeys.hex(sha1.digest());
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Single place where cover images are decoded. Previews are decoded with the resolution
+ * they're shown in: image bounds are read first and the image is subsampled
+ * while decoding, so even huge {@code folder.jpg} files take a bounded amount of memory.
+ * <p/>
+ * Full resolution is decoded only when cover is about to be written somewhere.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CoverDecoder {
+
+    private CoverDecoder() {
+    }
+
+    /**
+     * Decode preview of the cover, subsampled to be not much larger than requested size.
+     *
+     * @param resolver resolver to open the image with
+     * @param source uri of the image, either {@code file://} or {@code content://}
+     * @param reqSize size of the view the image will be shown in, in pixels
+     * @param lowMemory use 2 bytes per pixel instead of 4, at the cost of some banding
+     * @return decoded bitmap or null if the image format is not supported
+     * @throws IOException if the image couldn't be read
+     */
+    public static Bitmap decodePreview(ContentResolver resolver, Uri source, int reqSize, boolean lowMemory) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        decode(resolver, source, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            // not an image
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSizeFor(bounds.outWidth, bounds.outHeight, reqSize);
+        if (lowMemory) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+        return decode(resolver, source, options);
+    }
+
+    /**
+     * Decode the cover in its original resolution. Should only be used right before writing it.
+     *
+     * @param resolver resolver to open the image with
+     * @param source uri of the image, either {@code file://} or {@code content://}
+     * @return decoded bitmap or null if the image format is not supported
+     * @throws IOException if the image couldn't be read
+     */
+    public static Bitmap decodeFull(ContentResolver resolver, Uri source) throws IOException {
+        return decode(resolver, source, new BitmapFactory.Options());
+    }
+
+    /**
+     * Decode the cover so that neither of its sides exceeds the max size. Image is subsampled while
+     * decoding and then scaled down precisely, so full resolution is never held in memory.
+     *
+     * @param resolver resolver to open the image with
+     * @param source uri of the image, either {@code file://} or {@code content://}
+     * @param maxSize max width and height of the result, in pixels
+     * @return decoded bitmap or null if the image format is not supported
+     * @throws IOException if the image couldn't be read
+     */
+    public static Bitmap decodeBounded(ContentResolver resolver, Uri source, int maxSize) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        decode(resolver, source, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+
+        int largerSide = Math.max(bounds.outWidth, bounds.outHeight);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (largerSide / (options.inSampleSize * 2) >= maxSize) {
+            options.inSampleSize *= 2;
+        }
+
+        Bitmap sampled = decode(resolver, source, options);
+        if (sampled == null) {
+            return null;
+        }
+
+        float scale = (float) maxSize / Math.max(sampled.getWidth(), sampled.getHeight());
+        if (scale >= 1) {
+            return sampled;
+        }
+
+        Bitmap scaled = Bitmap.createScaledBitmap(sampled,
+                Math.round(sampled.getWidth() * scale), Math.round(sampled.getHeight() * scale), true);
+        if (scaled != sampled) {
+            sampled.recycle();
+        }
+        return scaled;
+    }
+
+    /**
+     * Pick the largest power of two subsampling that still keeps both image dimensions
+     * at or above the requested size. Decoder would round other values down to the power of two anyway.
+     *
+     * @param width original image width
+     * @param height original image height
+     * @param reqSize requested size of the smaller side, non-positive means original size
+     * @return sample size for {@link BitmapFactory.Options#inSampleSize}
+     */
+    public static int sampleSizeFor(int width, int height, int reqSize) {
+        if (reqSize <= 0) {
+            return 1;
+        }
+
+        int sampleSize = 1;
+        int smallerSide = Math.min(width, height);
+        while (smallerSide / (sampleSize * 2) >= reqSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @param ctx context to query activity manager with
+     * @return true if device is low on RAM and previews should be decoded with reduced color depth
+     */
+    public static boolean isLowMemory(Context ctx) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // such devices mostly are
+            return true;
+        }
+
+        ActivityManager am = (ActivityManager) ctx.getSystemService(Context.ACTIVITY_SERVICE);
+        return am != null && am.isLowRamDevice();
+    }
+
+    private static Bitmap decode(ContentResolver resolver, Uri source, BitmapFactory.Options options) throws IOException {
+        InputStream is = resolver.openInputStream(source);
+        if (is == null) {
+            throw new FileNotFoundException("Couldn't open cover image " + source);
+        }
+
+        try {
+            return BitmapFactory.decodeStream(is, null, options);
+        } catch (OutOfMemoryError e) {
+            // better to show nothing than to crash
+            throw new IOException("Not enough memory to decode cover image " + source, e);
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -19,6 +19,9 @@ package com.kanedias.vanilla.coverfetch;
 import android.content.Loader;
 import android.os.HandlerThread;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Interface for various engines for cover extraction
  *
@@ -30,10 +33,12 @@ public interface CoverEngine {
      * Synchronous call to engine to retrieve cover. Most likely to be used in {@link HandlerThread}
      * or {@link Loader}
      *
-     * @param trackName track name to search for. Never null
-     * @param artistName band or artist name to search for. Can be null
-     * @param albumName  full album name to search for. Can be null
-     * @return byte array containing album cover if available, null if nothing found
+     * @param request track info to search cover for
+     * @return file containing album cover if available, null if nothing found. Engines that
+     *         download or copy covers return the file from {@link CoverBlobStore}, which manages its lifetime.
+     *         Local engines return existing file. Neither must be modified or deleted by the caller.
+     * @throws IOException if lookup couldn't be completed, e.g. network is down or server failed.
+     *                     Unlike null result, this doesn't mean the cover doesn't exist.
      */
-    byte[] getCover(String trackName, String artistName, String albumName);
+    File getCover(CoverRequest request) throws IOException;
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Holder of process-wide cover engine instance. Activities come and go with every
+ * plugin launch, but the cache index should be loaded only once per process.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CoverEngines {
+
+    private static final String CACHE_DIR = "cover-cache"; // see shared_filepaths.xml
+    private static final long CACHE_MAX_BYTES = 32 * 1024 * 1024;
+    private static final String MISSES_PREFS = "cover-misses";
+    private static final String ALBUMS_PREFS = "cover-albums";
+    private static final String PREFETCH_PREFS = "cover-prefetch";
+    private static final String PLAN_STATS_PREFS = "cover-plan-stats";
+    private static final String ARTWORK_INDEX_FILE = "artwork-index";
+    private static final String LEGACY_SHARED_DIR = "covers";
+
+    private static final CoverHttpClient sHttp = new CoverHttpClient();
+    static {
+        // https://musicbrainz.org/doc/MusicBrainz_API/Rate_Limiting
+        sHttp.setRateLimit("musicbrainz.org", new HostRateLimiter(1, 1));
+        // no hard limit, but it's served by the same people, be polite
+        sHttp.setRateLimit("coverartarchive.org", new HostRateLimiter(5, 4));
+    }
+    private static final ExecutorService sSourceExecutor = Executors.newCachedThreadPool();
+
+    private static final ExecutorService sLookupExecutor = Executors.newCachedThreadPool();
+
+    private static final ExecutorService sPrefetchExecutor = Executors.newSingleThreadExecutor();
+
+    private static LocalArtworkIndex sArtworkIndex;
+    private static SafDocumentResolver sSafResolver;
+    private static CoverBlobStore sStore;
+    private static SqliteMbidIndex sMbidIndex;
+    private static CoverEngine sNetworkEngine;
+    private static CoverEngine sEngine;
+    private static CoverFetcher sFetcher;
+    private static CoverPrefetcher sPrefetcher;
+
+    private CoverEngines() {
+    }
+
+    /**
+     * Build engine pipeline: local sources are asked first, network is hedged behind them,
+     * is cached on disk and concurrent lookups for the same album are coalesced.
+     *
+     * Building it loads cache indexes and opens the database, so first call must not happen on the main thread.
+     *
+     * @param ctx context to resolve cache directory from
+     * @return shared cover engine, created on first call
+     */
+    public static synchronized CoverEngine get(Context ctx) {
+        if (sEngine == null) {
+            Context app = ctx.getApplicationContext();
+            sEngine = new CompositeCoverEngine(CompositeCoverEngine.Policy.HEDGED, Arrays.asList(
+                    // art embedded in the file is more specific than the one of the whole folder
+                    new CompositeCoverEngine.Source("tag", new TagCoverEngine(app.getContentResolver(), store(app)), 0, 2_000),
+                    new CompositeCoverEngine.Source("folder", new FolderCoverEngine(artworkIndex(app)), 1, 2_000),
+                    new CompositeCoverEngine.Source("coverartarchive", networkEngine(app), 2, 30_000)
+            ), sSourceExecutor);
+        }
+        return sEngine;
+    }
+
+    /**
+     * Network part of {@link #get(Context)} pipeline: cover art archive lookups cached on disk,
+     * concurrent lookups of the same album are coalesced. Prefetch uses it directly, so prefetch
+     * and interactive lookup of the same album share one network lookup.
+     *
+     * @param ctx context to resolve cache directory from
+     * @return shared network engine, created on first call
+     */
+    private static synchronized CoverEngine networkEngine(Context ctx) {
+        if (sNetworkEngine == null) {
+            Context app = ctx.getApplicationContext();
+            SharedPreferences missStore = app.getSharedPreferences(MISSES_PREFS, Context.MODE_PRIVATE);
+            SharedPreferences planStats = app.getSharedPreferences(PLAN_STATS_PREFS, Context.MODE_PRIVATE);
+
+            CoverEngine network = new CoverArchiveEngine(sHttp, mbidIndex(app), mbidIndex(app), store(app), new QueryPlanStats(planStats));
+            CoverEngine cached = new CachingCoverEngine(network, new MissRegistry(missStore), store(app));
+            sNetworkEngine = new CoalescingCoverEngine(cached, sSourceExecutor);
+        }
+        return sNetworkEngine;
+    }
+
+    /**
+     * Opens the database and migrates albums resolved by older versions, so first call must not happen on the main thread.
+     *
+     * @param ctx context to open database with
+     * @return shared index of resolved albums and cover art archive answers, e.g. for export and import
+     */
+    public static synchronized SqliteMbidIndex mbidIndex(Context ctx) {
+        if (sMbidIndex == null) {
+            Context app = ctx.getApplicationContext();
+            sMbidIndex = new SqliteMbidIndex(app);
+
+            // albums resolved before the index was moved to the database
+            SharedPreferences legacy = app.getSharedPreferences(ALBUMS_PREFS, Context.MODE_PRIVATE);
+            if (!legacy.getAll().isEmpty()) {
+                sMbidIndex.importLegacy(legacy.getAll());
+                legacy.edit().clear().apply();
+            }
+        }
+        return sMbidIndex;
+    }
+
+    /**
+     * @param ctx context to resolve cache directory from
+     * @return shared index of artwork files in music directories
+     */
+    public static synchronized LocalArtworkIndex artworkIndex(Context ctx) {
+        if (sArtworkIndex == null) {
+            Context app = ctx.getApplicationContext();
+            sArtworkIndex = new LocalArtworkIndex(new File(app.getCacheDir(), ARTWORK_INDEX_FILE));
+        }
+        return sArtworkIndex;
+    }
+
+    /**
+     * Loads the index of the store, so first call must not happen on the main thread.
+     *
+     * @param ctx context to resolve cache directory from
+     * @return shared store of fetched covers, also exposed to other apps through file provider
+     */
+    public static synchronized CoverBlobStore store(Context ctx) {
+        if (sStore == null) {
+            Context app = ctx.getApplicationContext();
+            sStore = new CoverBlobStore(new File(app.getCacheDir(), CACHE_DIR), CACHE_MAX_BYTES);
+
+            // older versions copied shared covers to a separate directory
+            File[] legacyShared = new File(app.getCacheDir(), LEGACY_SHARED_DIR).listFiles();
+            if (legacyShared != null) {
+                for (File file : legacyShared) {
+                    file.delete();
+                }
+            }
+        }
+        return sStore;
+    }
+
+    /**
+     * @param ctx context to query documents with
+     * @param treeRoot uri of SAF tree user granted access to
+     * @return shared resolver of paths in this tree. New one is created if tree root has changed
+     */
+    public static synchronized SafDocumentResolver safResolver(Context ctx, Uri treeRoot) {
+        if (sSafResolver == null || !sSafResolver.getTreeRoot().equals(treeRoot)) {
+            sSafResolver = new SafDocumentResolver(ctx, treeRoot);
+        }
+        return sSafResolver;
+    }
+
+    /**
+     * @param ctx context to resolve cache directory from
+     * @return shared asynchronous front-end of {@link #get(Context)} engine
+     */
+    public static synchronized CoverFetcher fetcher(Context ctx) {
+        if (sFetcher == null) {
+            // engine touches disk while it's built, let the first lookup build it in background
+            Context app = ctx.getApplicationContext();
+            sFetcher = new CoverFetcher(() -> get(app), sLookupExecutor);
+        }
+        return sFetcher;
+    }
+
+    /**
+     * @param ctx context to resolve cache directory from
+     * @return shared prefetcher that warms the cache of {@link #get(Context)} engine
+     */
+    public static synchronized CoverPrefetcher prefetcher(Context ctx) {
+        if (sPrefetcher == null) {
+            // called from broadcast receiver on the main thread, engine is built by the first run
+            Context app = ctx.getApplicationContext();
+            SharedPreferences budget = app.getSharedPreferences(PREFETCH_PREFS, Context.MODE_PRIVATE);
+            sPrefetcher = new CoverPrefetcher(app, () -> networkEngine(app), () -> store(app), budget, sPrefetchExecutor);
+        }
+        return sPrefetcher;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous front-end for {@link CoverEngine}. Runs lookups on a background executor
+ * and delivers results on the main thread. Every lookup can be cancelled through returned handle,
+ * which also closes its in-flight connections.
+ * <p/>
+ * Synchronous {@link CoverEngine#getCover(CoverRequest)} stays the contract for engines themselves,
+ * this class only schedules it. Found cover can also be post-processed in background,
+ * e.g. decoded, with {@link Transform}, so that main thread receives it ready to be shown.
+ * <p/>
+ * Engine itself is built lazily, by the first lookup on the background executor: building it
+ * loads cache indexes and opens databases, which must not happen on the main thread.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CoverFetcher {
+
+    private static final String TAG = CoverFetcher.class.getSimpleName();
+
+    /**
+     * Receives lookup results on the main thread. Not called at all if lookup was cancelled.
+     *
+     * @param <T> type of the result, found file or whatever {@link Transform} made of it
+     */
+    public interface Callback<T> {
+
+        /**
+         * @param cover found cover or null if nothing was found
+         */
+        void onResult(T cover);
+
+        /**
+         * @param error reason lookup couldn't complete, e.g. network failure or deadline
+         */
+        void onError(IOException error);
+    }
+
+    /**
+     * Processing of the found cover, runs on the background thread right after lookup
+     *
+     * @param <T> type of the processed cover
+     */
+    public interface Transform<T> {
+
+        /**
+         * @param cover uri of the found cover, never null
+         * @return processed cover or null if it turned out to be unusable
+         * @throws IOException if cover couldn't be read
+         */
+        T apply(Uri cover) throws IOException;
+    }
+
+    /**
+     * Handle of the running lookup
+     */
+    public static class Handle {
+
+        private final CoverRequest mRequest;
+        private volatile Future<?> mFuture;
+
+        private Handle(CoverRequest request) {
+            mRequest = request;
+        }
+
+        /**
+         * Cancel the lookup. Callback won't be called after this returns.
+         */
+        public void cancel() {
+            mRequest.cancel();
+
+            Future<?> future = mFuture;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mRequest.isCancelled();
+        }
+    }
+
+    private final Callable<CoverEngine> mEngineFactory;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private CoverEngine mEngine;
+
+    /**
+     * @param engineFactory builder of the engine to run lookups with, called once on the executor
+     * @param executor      executor to run lookups on
+     */
+    public CoverFetcher(Callable<CoverEngine> engineFactory, ExecutorService executor) {
+        mEngineFactory = engineFactory;
+        mExecutor = executor;
+    }
+
+    /**
+     * @return engine to run lookups with, built on first call. Called on the executor only
+     * @throws IOException if engine couldn't be built
+     */
+    private synchronized CoverEngine engine() throws IOException {
+        if (mEngine == null) {
+            try {
+                mEngine = mEngineFactory.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Couldn't initialize cover engine", e);
+            }
+        }
+        return mEngine;
+    }
+
+    /**
+     * Start cover lookup in background
+     *
+     * @param request   what to search for
+     * @param timeoutMs deadline for the whole lookup
+     * @param callback  receiver of the result, called on the main thread
+     * @return handle to cancel the lookup with
+     */
+    public Handle fetch(CoverRequest request, long timeoutMs, Callback<File> callback) {
+        request.setTimeout(timeoutMs);
+
+        Handle handle = new Handle(request);
+        handle.mFuture = mExecutor.submit(() -> {
+            File cover = null;
+            IOException error = null;
+            try {
+                cover = engine().getCover(request);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                // e.g. security exception from content uri, otherwise the future swallows it and callback never fires
+                error = new IOException(e);
+            }
+
+            deliver(handle, cover, error, callback);
+        });
+        return handle;
+    }
+
+    /**
+     * Start cover lookup in background and process found cover there too
+     *
+     * @param request   what to search for
+     * @param timeoutMs deadline for the whole lookup
+     * @param transform processing of the found cover, not called if nothing was found
+     * @param callback  receiver of the processed result, called on the main thread
+     * @return handle to cancel the lookup with
+     */
+    public <T> Handle fetch(CoverRequest request, long timeoutMs, Transform<T> transform, Callback<T> callback) {
+        request.setTimeout(timeoutMs);
+
+        Handle handle = new Handle(request);
+        handle.mFuture = mExecutor.submit(() -> {
+            T result = null;
+            IOException error = null;
+            try {
+                File cover = engine().getCover(request);
+                if (cover != null && !request.isCancelled()) {
+                    result = transform.apply(Uri.fromFile(cover));
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException(e);
+            }
+
+            deliver(handle, result, error, callback);
+        });
+        return handle;
+    }
+
+    /**
+     * Process already known cover in background, e.g. the one picked by user
+     *
+     * @param cover     uri of the cover
+     * @param transform processing of the cover
+     * @param callback  receiver of the processed result, called on the main thread
+     * @return handle to cancel the processing with
+     */
+    public <T> Handle open(Uri cover, Transform<T> transform, Callback<T> callback) {
+        Handle handle = new Handle(new CoverRequest(null, null, null));
+        handle.mFuture = mExecutor.submit(() -> {
+            T result = null;
+            IOException error = null;
+            try {
+                result = transform.apply(cover);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException(e);
+            }
+
+            deliver(handle, result, error, callback);
+        });
+        return handle;
+    }
+
+    private <T> void deliver(Handle handle, T cover, IOException error, Callback<T> callback) {
+        mMainHandler.post(() -> {
+            // cancel() is called from the main thread too, so this check is race-free
+            if (handle.isCancelled()) {
+                return;
+            }
+
+            if (error != null) {
+                Log.w(TAG, "Cover lookup failed", error);
+                callback.onError(error);
+                return;
+            }
+            callback.onResult(cover);
+        });
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * HTTP client shared by all network cover engines. Keeps idle connections alive between lookups,
+ * so consecutive requests to musicbrainz and cover art archive skip DNS, TCP and TLS setup.
+ * <p/>
+ * Also limits number of simultaneous requests per host and counts how many
+ * requests were served over reused connections.
+ * <p/>
+ * Hosts with usage policies (see {@link #setRateLimit(String, HostRateLimiter)}) are queried
+ * no faster than their limiter allows. Answers that mean "slow down" (503 and 429) are retried
+ * after {@code Retry-After} or exponential back-off with jitter, and pause the whole host meanwhile,
+ * so they are never mistaken for "not found".
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CoverHttpClient {
+
+    private static final String USER_AGENT = "Vanilla Cover Fetch (https://github.com/vanilla-music)";
+
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    private static final long DEFAULT_KEEP_ALIVE_MS = 60_000;
+    private static final int DEFAULT_MAX_PER_HOST = 4;
+
+    /**
+     * How many times to repeat the request that was answered with "slow down"
+     */
+    private static final int MAX_RETRIES = 3;
+
+    /**
+     * First back-off delay when server didn't say how long to wait, doubles with each retry
+     */
+    private static final long BASE_BACKOFF_MS = 1_000;
+
+    /**
+     * Longest {@code Retry-After} we're willing to honour, otherwise the answer is returned as is
+     */
+    private static final long MAX_RETRY_AFTER_MS = 30_000;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final String TAG = CoverHttpClient.class.getSimpleName();
+
+    /**
+     * Handles the response while connection is still held. Response is closed
+     * and connection is returned to the pool right after this returns.
+     *
+     * @param <T> result of response processing
+     */
+    public interface ResponseHandler<T> {
+        T handle(Response response) throws IOException;
+    }
+
+    private final OkHttpClient mClient;
+    private final ConnectionPool mPool;
+    private final int mMaxPerHost;
+    private final ConcurrentMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, HostRateLimiter> mHostLimiters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Call, CoverRequest> mCallOwners = new ConcurrentHashMap<>();
+    private final Random mJitter = new Random();
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mConnectsStarted = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+
+    public CoverHttpClient() {
+        this(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_MS, DEFAULT_MAX_PER_HOST);
+    }
+
+    /**
+     * @param maxIdleConnections how many idle connections to keep in the pool
+     * @param keepAliveMs        how long idle connection is kept before closing
+     * @param maxPerHost         how many requests to the same host can be in flight at once
+     */
+    public CoverHttpClient(int maxIdleConnections, long keepAliveMs, int maxPerHost) {
+        mPool = new ConnectionPool(maxIdleConnections, keepAliveMs, TimeUnit.MILLISECONDS);
+        mMaxPerHost = maxPerHost;
+        mClient = new OkHttpClient.Builder()
+                .connectionPool(mPool)
+                .connectTimeout(15_000, TimeUnit.MILLISECONDS)
+                .readTimeout(10_000, TimeUnit.MILLISECONDS)
+                .eventListener(new ReuseCounter())
+                .addInterceptor(new PolitenessInterceptor())
+                .build();
+    }
+
+    /**
+     * Limit request rate to the host. Requests over the limit wait in a queue instead of failing.
+     *
+     * @param host host name, e.g. {@code musicbrainz.org}
+     * @param limiter limiter to apply to all requests to this host
+     */
+    public void setRateLimit(String host, HostRateLimiter limiter) {
+        mHostLimiters.put(host, limiter);
+    }
+
+    /**
+     * @param host host name, e.g. {@code musicbrainz.org}
+     * @return limiter of the host, to inspect its metrics. Null if host is not limited
+     */
+    public HostRateLimiter getRateLimit(String host) {
+        return mHostLimiters.get(host);
+    }
+
+    /**
+     * Whether the answer means the server is overloaded or down rather than "not found".
+     * Such answers should be reported as errors, not as misses.
+     *
+     * @param response response to check
+     * @return true if the failure is transient and the request may succeed later
+     */
+    public static boolean isTransientFailure(Response response) {
+        return response.code() == HTTP_TOO_MANY_REQUESTS || response.code() >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    /**
+     * Prepare GET request with common headers. Returned call can be cancelled from any thread,
+     * which closes its connection immediately.
+     *
+     * @param url url to request
+     * @return call ready to be passed to {@link #execute(Call, ResponseHandler)}
+     */
+    public Call newCall(String url) {
+        return newCall(url, null, null);
+    }
+
+    /**
+     * Prepare conditional GET request: server answers with 304 and no body if the resource
+     * didn't change since the answer these validators came from.
+     *
+     * @param url url to request
+     * @param etag {@code ETag} of the previous answer, can be null
+     * @param lastModified {@code Last-Modified} of the previous answer, can be null
+     * @return call ready to be passed to {@link #execute(Call, ResponseHandler)}
+     */
+    public Call newCall(String url, String etag, String lastModified) {
+        Request.Builder request = new Request.Builder()
+                .url(url)
+                .header("User-Agent", USER_AGENT);
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.header("If-Modified-Since", lastModified);
+        }
+        return mClient.newCall(request.build());
+    }
+
+    /**
+     * Execute the call synchronously, waiting for a free per-host slot first.
+     *
+     * @param call call created with {@link #newCall(String)}
+     * @param handler handler of the response
+     * @return whatever handler returned
+     * @throws IOException in case of connect problems, cancellation or if handler failed
+     */
+    public <T> T execute(Call call, ResponseHandler<T> handler) throws IOException {
+        Semaphore permits = permitsFor(call.request().url().host());
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for connection slot");
+        }
+
+        try (Response response = call.execute()) {
+            mRequests.incrementAndGet();
+            return handler.handle(response);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Execute the call on behalf of the cover request. The call is cancelled if request is,
+     * and is not allowed to run past request deadline. Response bytes are accounted to the request.
+     * <p/>
+     * Background requests wait until rate-limited host is idle before queueing,
+     * so interactive lookups never wait behind them.
+     *
+     * @param request cover request this call is made for
+     * @param call call created with {@link #newCall(String)}
+     * @param handler handler of the response
+     * @return whatever handler returned
+     * @throws IOException in case of connect problems, cancellation, deadline or if handler failed
+     */
+    public <T> T execute(CoverRequest request, Call call, ResponseHandler<T> handler) throws IOException {
+        long remaining = request.getRemainingMs();
+        if (remaining == 0) {
+            throw new InterruptedIOException("Cover request deadline exceeded");
+        }
+
+        if (remaining != Long.MAX_VALUE) {
+            call.timeout().timeout(remaining, TimeUnit.MILLISECONDS);
+        }
+
+        Runnable canceller = call::cancel;
+        request.addCancelListener(canceller);
+        try {
+            if (request.isCancelled()) {
+                throw new InterruptedIOException("Cover request was cancelled");
+            }
+
+            HostRateLimiter limiter = mHostLimiters.get(call.request().url().host());
+            if (request.isBackground() && limiter != null) {
+                limiter.awaitIdle(request::isCancelled);
+            }
+
+            mCallOwners.put(call, request);
+            return execute(call, handler);
+        } finally {
+            mCallOwners.remove(call);
+            request.removeCancelListener(canceller);
+        }
+    }
+
+    /**
+     * Shortcut for {@link #execute(CoverRequest, Call, ResponseHandler)}
+     */
+    public <T> T get(CoverRequest request, String url, ResponseHandler<T> handler) throws IOException {
+        return execute(request, newCall(url), handler);
+    }
+
+    private Semaphore permitsFor(String host) {
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            Semaphore created = new Semaphore(mMaxPerHost, true);
+            permits = mHostPermits.putIfAbsent(host, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * @return total number of requests executed by this client
+     */
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return number of requests repeated because server asked us to slow down
+     */
+    public long getRetryCount() {
+        return mRetries.get();
+    }
+
+    /**
+     * @return number of new connections this client had to establish
+     */
+    public long getConnectionCount() {
+        return mConnectsStarted.get();
+    }
+
+    /**
+     * @return number of requests that were served over already established connection
+     */
+    public long getReusedConnectionCount() {
+        return Math.max(0, mRequests.get() - mConnectsStarted.get());
+    }
+
+    /**
+     * @return number of connections that are currently idle in the pool
+     */
+    public int getIdleConnectionCount() {
+        return mPool.idleConnectionCount();
+    }
+
+    /**
+     * Applies host rate limits and retries "slow down" answers. Runs as an application interceptor,
+     * so the whole sequence of retries is one call: it can be cancelled and is bound by the call timeout.
+     */
+    private class PolitenessInterceptor implements Interceptor {
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            HostRateLimiter limiter = mHostLimiters.get(request.url().host());
+            Call call = chain.call();
+            HostRateLimiter.CancelSignal cancelled = call::isCanceled;
+
+            for (int attempt = 0; ; ++attempt) {
+                if (limiter != null) {
+                    limiter.acquire(cancelled);
+                }
+
+                Response response = chain.proceed(request);
+                if (response.code() != HttpURLConnection.HTTP_UNAVAILABLE && response.code() != HTTP_TOO_MANY_REQUESTS) {
+                    return response;
+                }
+
+                long delayMs = retryDelay(response, attempt);
+                if (attempt >= MAX_RETRIES || delayMs > MAX_RETRY_AFTER_MS) {
+                    // give up, caller treats it as a transient failure
+                    return response;
+                }
+
+                Log.w(TAG, "Server asked to slow down, retrying in " + delayMs + " ms: " + request.url());
+                response.close();
+                mRetries.incrementAndGet();
+
+                if (limiter != null) {
+                    // other requests to this host would get the same answer
+                    limiter.pauseUntil(System.currentTimeMillis() + delayMs);
+                } else {
+                    HostRateLimiter.sleep(delayMs, cancelled);
+                }
+            }
+        }
+
+        /**
+         * @return delay asked by server in {@code Retry-After}, or exponential back-off
+         *         with full jitter if server didn't specify it
+         */
+        private long retryDelay(Response response, int attempt) {
+            Long retryAfter = parseRetryAfter(response.header("Retry-After"));
+            if (retryAfter != null) {
+                return retryAfter;
+            }
+
+            long backoff = BASE_BACKOFF_MS << attempt;
+            synchronized (mJitter) {
+                return backoff / 2 + (long) (mJitter.nextDouble() * backoff);
+            }
+        }
+    }
+
+    /**
+     * @param value value of {@code Retry-After} header, either delay in seconds or HTTP date
+     * @return delay in milliseconds or null if header is absent or malformed
+     */
+    private static Long parseRetryAfter(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException ignored) {
+            // not seconds, try date
+        }
+
+        try {
+            SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            Date retryAt = httpDate.parse(value.trim());
+            return Math.max(0, retryAt.getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Counts connection setups. Only calls that couldn't find idle connection
+     * in the pool start connecting. Also accounts response bodies, including redirects
+     * and retries, to the cover requests calls were made for.
+     */
+    private class ReuseCounter extends EventListener {
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+            mConnectsStarted.incrementAndGet();
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            CoverRequest owner = mCallOwners.get(call);
+            if (owner != null) {
+                owner.addTransferredBytes(byteCount);
+            }
+        }
+    }
+}
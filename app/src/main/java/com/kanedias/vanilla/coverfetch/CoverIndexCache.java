@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+/**
+ * Persistent cache of cover art archive index answers, keyed by release group MBID.
+ * Only the front image entry of the index is kept, along with validators of the answer,
+ * so the index can be re-checked with a conditional request instead of downloaded again.
+ *
+ * @author Oleg Chernovskiy
+ */
+public interface CoverIndexCache {
+
+    /**
+     * Cached index answer
+     */
+    class Entry {
+
+        /**
+         * {@code ETag} header of the answer. Can be null
+         */
+        public final String etag;
+
+        /**
+         * {@code Last-Modified} header of the answer. Can be null
+         */
+        public final String lastModified;
+
+        /**
+         * Front image entry of the index as JSON, with image url and thumbnails of available sizes.
+         * Null if release group has no front image
+         */
+        public final String frontImage;
+
+        public Entry(String etag, String lastModified, String frontImage) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.frontImage = frontImage;
+        }
+    }
+
+    /**
+     * @param mbid release group MBID
+     * @return cached index answer or null if there's none
+     */
+    Entry getIndex(String mbid);
+
+    /**
+     * Remember index answer for the release group
+     *
+     * @param mbid release group MBID
+     * @param entry index answer
+     */
+    void putIndex(String mbid, Entry entry);
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Key derivation for caches and indexes. All tracks of the same album map to the same key,
+ * so they share one lookup and get the same cover. Tracks without album are keyed individually.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CoverKeys {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private CoverKeys() {
+    }
+
+    /**
+     * @param request cover request
+     * @return canonical lookup key: (artist, album) if album is known, (artist, track) otherwise.
+     *         Covers of non-default resolution are keyed separately
+     */
+    public static String lookupKey(CoverRequest request) {
+        String key = request.getAlbum() != null
+                ? albumKey(request.getArtist(), request.getAlbum())
+                : "track" + '\u0000' + normalize(request.getArtist()) + '\u0000' + normalize(request.getTitle());
+
+        if (request.getResolution() != CoverResolution.THUMB_500) {
+            // default resolution keeps the old key, so already cached covers stay valid
+            key += '\u0000' + request.getResolution().name();
+        }
+        return key;
+    }
+
+    /**
+     * @param artist album artist, can be null
+     * @param album album name, never null
+     * @return canonical album key
+     */
+    public static String albumKey(String artist, String album) {
+        return "album" + '\u0000' + normalize(artist) + '\u0000' + normalize(album);
+    }
+
+    /**
+     * @param digest hash bytes
+     * @return lowercase hex representation of the hash
+     */
+    public static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(String.format(Locale.US, "%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Builds file-name-safe version of the key
+     *
+     * @param key key as returned by {@link #lookupKey(CoverRequest)}
+     * @return hex SHA-1 of the key
+     */
+    public static String hashed(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return hex(sha1.digest(key.getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // every Android device must have SHA-1
+            throw new IllegalStateException("SHA-1 digest is not available", e);
+        }
+    }
+
+    /**
+     * Normalize key part so that case and whitespace don't produce different entries
+     */
+    public static String normalize(String part) {
+        if (part == null) {
+            return "";
+        }
+        return part.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+}
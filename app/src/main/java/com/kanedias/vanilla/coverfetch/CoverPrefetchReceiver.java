@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.kanedias.vanilla.plugins.PluginConstants.LOG_TAG;
+
+/**
+ * Broadcast receiver for prefetch requests of the player. Prefetch makes network traffic
+ * on behalf of the sender, so unlike plugin queries this receiver is guarded: sender must hold
+ * {@link #PERMISSION_PREFETCH_COVERS} and identify itself with {@link #EXTRA_SENDER}, only
+ * {@link #KNOWN_CALLERS} are served.
+ *
+ * @see CoverPrefetcher
+ * @author Oleg Chernovskiy
+ */
+public class CoverPrefetchReceiver extends BroadcastReceiver {
+
+    public static final String PERMISSION_PREFETCH_COVERS = "com.kanedias.vanilla.coverfetch.permission.PREFETCH_COVERS";
+
+    public static final String ACTION_PREFETCH_COVERS = "com.kanedias.vanilla.coverfetch.action.PREFETCH_COVERS";
+
+    /**
+     * {@code ArrayList<Bundle>} of upcoming tracks, most urgent first. Each bundle has
+     * {@link #TRACK_TITLE} and optionally {@link #TRACK_ARTIST}, {@link #TRACK_ALBUM} and {@link #TRACK_URI}
+     */
+    public static final String EXTRA_TRACKS = "com.kanedias.vanilla.coverfetch.extra.TRACKS";
+
+    /**
+     * {@link PendingIntent} created by the sender, e.g. an empty broadcast to itself. Broadcasts don't tell
+     * who sent them, but pending intent can't be forged, so its creator package is the sender.
+     */
+    public static final String EXTRA_SENDER = "com.kanedias.vanilla.coverfetch.extra.SENDER";
+
+    /**
+     * Packages allowed to request prefetch
+     */
+    private static final Set<String> KNOWN_CALLERS = new HashSet<>(Arrays.asList(
+            "ch.blinkenlights.android.vanilla" // Vanilla Music
+    ));
+
+    public static final String TRACK_TITLE = "title";
+    public static final String TRACK_ARTIST = "artist";
+    public static final String TRACK_ALBUM = "album";
+    public static final String TRACK_URI = "uri";
+
+    /**
+     * Receiver is allowed to work in background only for a few seconds, the rest of the queue
+     * will be prefetched on the next broadcast
+     */
+    private static final long PREFETCH_RUN_MS = 8_000;
+
+    /**
+     * Warms the cover cache for upcoming tracks in background. Receiver stays alive until
+     * prefetch is done, so the process is not killed in the middle of it.
+     *
+     * @param context context this receiver operates in
+     * @param intent  intent with the list of upcoming tracks
+     */
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ACTION_PREFETCH_COVERS.equals(intent.getAction())) {
+            return;
+        }
+
+        PendingIntent sender = intent.getParcelableExtra(EXTRA_SENDER);
+        if (sender == null || !KNOWN_CALLERS.contains(sender.getTargetPackage())) {
+            Log.w(LOG_TAG, "Ignoring prefetch request from unknown sender " + (sender == null ? null : sender.getTargetPackage()));
+            return;
+        }
+
+        ArrayList<Bundle> tracks = intent.getParcelableArrayListExtra(EXTRA_TRACKS);
+        if (tracks == null || tracks.isEmpty()) {
+            return;
+        }
+
+        // covers should be cached under the same key the dialog will look for
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        CoverResolution resolution = CoverSettings.getResolution(prefs);
+
+        List<CoverRequest> requests = new ArrayList<>(tracks.size());
+        for (Bundle track : tracks) {
+            String title = track.getString(TRACK_TITLE);
+            if (title == null) {
+                continue;
+            }
+
+            Uri mediaUri = track.getParcelable(TRACK_URI);
+            requests.add(new CoverRequest(title, track.getString(TRACK_ARTIST), track.getString(TRACK_ALBUM))
+                    .setMediaUri(mediaUri)
+                    .setResolution(resolution));
+        }
+
+        PendingResult pending = goAsync();
+        long deadline = System.currentTimeMillis() + PREFETCH_RUN_MS;
+        CoverEngines.prefetcher(context).prefetch(requests, deadline, pending::finish);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Warms the cover cache for tracks that are about to be played, so that cover dialog opened
+ * for them is shown from cache right away instead of waiting for the network.
+ * <p/>
+ * Prefetch is strictly best-effort: it runs only on unmetered network, one lookup at a time
+ * on a background-priority thread, and its requests are marked as background, so they take
+ * rate-limited slots only when interactive lookups don't need them. Every lookup reserves
+ * its worst-case traffic from a daily budget before it starts, and is charged with all
+ * response bytes it actually received, searches and indexes included, when it's done.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CoverPrefetcher {
+
+    private static final String TAG = CoverPrefetcher.class.getSimpleName();
+
+    private static final long DAILY_BUDGET_BYTES = 16 * 1024 * 1024;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Reserved from the budget before each lookup, so the last one can't overshoot it
+     */
+    private static final long LOOKUP_RESERVE_BYTES = 1024 * 1024;
+
+    /**
+     * Prefetched covers are limited to a part of the reserve, the rest is for searches and indexes.
+     * 500px thumbnails are usually ~100 KiB, larger ones are left for interactive lookups
+     */
+    private static final long MAX_IMAGE_BYTES = 512 * 1024;
+
+    /**
+     * Single lookup shouldn't take the whole run, the rest of the queue matters too
+     */
+    private static final long TRACK_TIMEOUT_MS = 15_000;
+
+    private static final String PREF_BUDGET_DAY = "budget_day";
+    private static final String PREF_BUDGET_SPENT = "budget_spent";
+
+    private final Context mContext;
+    private final Callable<CoverEngine> mEngineFactory;
+    private final Callable<CoverBlobStore> mStoreFactory;
+    private final SharedPreferences mBudget;
+    private final ExecutorService mExecutor;
+
+    private CoverEngine mEngine;
+    private CoverBlobStore mStore;
+
+    /**
+     * @param ctx context to check network state with
+     * @param engineFactory builder of the engine to run lookups with, called on the executor.
+     *                      Should coalesce them with interactive ones, so the same album is not looked up twice
+     * @param storeFactory builder of the store the engine caches network covers in, called on the executor
+     * @param budget preferences to keep spent byte budget in. Should be dedicated to prefetcher
+     * @param executor single-threaded executor to run prefetch on, runs are queued there
+     */
+    public CoverPrefetcher(Context ctx, Callable<CoverEngine> engineFactory, Callable<CoverBlobStore> storeFactory,
+                           SharedPreferences budget, ExecutorService executor) {
+        mContext = ctx.getApplicationContext();
+        mEngineFactory = engineFactory;
+        mStoreFactory = storeFactory;
+        mBudget = budget;
+        mExecutor = executor;
+    }
+
+    /**
+     * Look up covers for the tracks in order, skipping the ones that are already cached.
+     * Stops when run deadline passes, budget is exhausted or network becomes metered.
+     *
+     * @param requests upcoming tracks, most urgent first
+     * @param deadline wall-clock time the whole run must complete by
+     * @param onDone called on the prefetch thread when run completes, however it ends
+     */
+    public void prefetch(List<CoverRequest> requests, long deadline, Runnable onDone) {
+        mExecutor.submit(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                if (mEngine == null) {
+                    // executor is single-threaded, no need to synchronize
+                    mEngine = mEngineFactory.call();
+                    mStore = mStoreFactory.call();
+                }
+
+                int warmed = 0;
+                for (CoverRequest request : requests) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || getRemainingBudget() < LOOKUP_RESERVE_BYTES || !isUnmetered()) {
+                        break;
+                    }
+
+                    if (prefetchOne(request, Math.min(remaining, TRACK_TIMEOUT_MS))) {
+                        warmed++;
+                    }
+                }
+                Log.d(TAG, "Prefetched " + warmed + " of " + requests.size() + " covers");
+            } catch (Exception e) {
+                Log.w(TAG, "Prefetch run failed", e);
+            } finally {
+                onDone.run();
+            }
+        });
+    }
+
+    /**
+     * @return true if cover wasn't cached and is now
+     */
+    private boolean prefetchOne(CoverRequest request, long timeoutMs) {
+        String key = CoverKeys.hashed(CoverKeys.lookupKey(request));
+        if (mStore.get(key) != null) {
+            // already warm
+            return false;
+        }
+
+        // charge the worst case upfront, the rest is returned when we know how much was received
+        spend(LOOKUP_RESERVE_BYTES);
+        request.setBackground(true)
+                .setMaxImageBytes(MAX_IMAGE_BYTES)
+                .setTimeout(timeoutMs);
+        try {
+            mEngine.getCover(request);
+        } catch (IOException e) {
+            Log.d(TAG, "Couldn't prefetch cover for " + request.getTitle(), e);
+            return false;
+        } finally {
+            spend(request.getTransferredBytes() - LOOKUP_RESERVE_BYTES);
+        }
+
+        return mStore.get(key) != null;
+    }
+
+    private boolean isUnmetered() {
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) {
+            return false;
+        }
+
+        NetworkInfo active = cm.getActiveNetworkInfo();
+        if (active == null || !active.isConnected()) {
+            return false;
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // no metered flag yet, treat only wi-fi and ethernet as free
+            return active.getType() == ConnectivityManager.TYPE_WIFI || active.getType() == ConnectivityManager.TYPE_ETHERNET;
+        }
+        return !cm.isActiveNetworkMetered();
+    }
+
+    private synchronized long getRemainingBudget() {
+        long today = System.currentTimeMillis() / DAY_MS;
+        if (mBudget.getLong(PREF_BUDGET_DAY, -1) != today) {
+            return DAILY_BUDGET_BYTES;
+        }
+        return DAILY_BUDGET_BYTES - mBudget.getLong(PREF_BUDGET_SPENT, 0);
+    }
+
+    private synchronized void spend(long bytes) {
+        long today = System.currentTimeMillis() / DAY_MS;
+        long spent = mBudget.getLong(PREF_BUDGET_DAY, -1) == today ? mBudget.getLong(PREF_BUDGET_SPENT, 0) : 0;
+        mBudget.edit()
+                .putLong(PREF_BUDGET_DAY, today)
+                .putLong(PREF_BUDGET_SPENT, spent + bytes)
+                .apply();
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything cover engines may need to know about the track to find its cover.
+ * Network engines use tags, local engines use media file and artwork passed by tag editor.
+ * <p/>
+ * Request can be cancelled from any thread, and can have a deadline. Engines register cancel
+ * listeners for the work they do, e.g. to close in-flight connections, and check
+ * {@link #getRemainingMs()} before starting long operations.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CoverRequest {
+
+    private final String mTitle;
+    private final String mArtist;
+    private final String mAlbum;
+
+    private Uri mMediaUri;
+    private Uri mTagArtUri;
+    private boolean mIgnoreMisses;
+    private boolean mSkipCache;
+    private volatile boolean mBackground;
+    private volatile long mMaxImageBytes = Long.MAX_VALUE;
+    private CoverResolution mResolution = CoverResolution.THUMB_500;
+
+    private volatile long mDeadline = Long.MAX_VALUE;
+    private boolean mCancelled;
+    private final List<Runnable> mCancelListeners = new ArrayList<>();
+    private final AtomicLong mTransferredBytes = new AtomicLong();
+
+    private CoverRequest mParent;
+    private Runnable mParentCanceller;
+
+    /**
+     * @param title track name to search for. Never null
+     * @param artist band or artist name to search for. Can be null
+     * @param album full album name to search for. Can be null
+     */
+    public CoverRequest(String title, String artist, String album) {
+        mTitle = title;
+        mArtist = artist;
+        mAlbum = album;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public String getArtist() {
+        return mArtist;
+    }
+
+    public String getAlbum() {
+        return mAlbum;
+    }
+
+    /**
+     * @return uri of the media file this cover is requested for. Can be null
+     */
+    public Uri getMediaUri() {
+        return mMediaUri;
+    }
+
+    public CoverRequest setMediaUri(Uri mediaUri) {
+        mMediaUri = mediaUri;
+        return this;
+    }
+
+    /**
+     * @return content uri of the artwork extracted from file tags by tag editor plugin. Can be null
+     */
+    public Uri getTagArtUri() {
+        return mTagArtUri;
+    }
+
+    public CoverRequest setTagArtUri(Uri tagArtUri) {
+        mTagArtUri = tagArtUri;
+        return this;
+    }
+
+    /**
+     * @return true if user explicitly asked for this lookup and recent misses should not prevent it
+     */
+    public boolean isIgnoreMisses() {
+        return mIgnoreMisses;
+    }
+
+    public CoverRequest setIgnoreMisses(boolean ignoreMisses) {
+        mIgnoreMisses = ignoreMisses;
+        return this;
+    }
+
+    /**
+     * @return true if user asked to look up the cover again, so cached cover and resolved album should not be reused
+     */
+    public boolean isSkipCache() {
+        return mSkipCache;
+    }
+
+    public CoverRequest setSkipCache(boolean skipCache) {
+        mSkipCache = skipCache;
+        return this;
+    }
+
+    /**
+     * @return true if nobody waits for this lookup, e.g. it's a prefetch, so it should yield to interactive ones
+     */
+    public boolean isBackground() {
+        return mBackground;
+    }
+
+    public CoverRequest setBackground(boolean background) {
+        mBackground = background;
+        return this;
+    }
+
+    /**
+     * @return largest cover image network engines may download for this request,
+     *         in addition to their own limits
+     */
+    public long getMaxImageBytes() {
+        return mMaxImageBytes;
+    }
+
+    public CoverRequest setMaxImageBytes(long maxImageBytes) {
+        mMaxImageBytes = maxImageBytes;
+        return this;
+    }
+
+    /**
+     * Account response bytes received on behalf of this request. Called by http client from any thread.
+     */
+    public void addTransferredBytes(long bytes) {
+        mTransferredBytes.addAndGet(bytes);
+        if (mParent != null) {
+            mParent.addTransferredBytes(bytes);
+        }
+    }
+
+    /**
+     * @return response bytes received on behalf of this request so far, images and metadata alike
+     */
+    public long getTransferredBytes() {
+        return mTransferredBytes.get();
+    }
+
+    /**
+     * @return size of the cover network engines should download
+     */
+    public CoverResolution getResolution() {
+        return mResolution;
+    }
+
+    public CoverRequest setResolution(CoverResolution resolution) {
+        mResolution = resolution;
+        return this;
+    }
+
+    /**
+     * @return copy of the request data, without deadline, cancellation state and transferred bytes
+     */
+    public CoverRequest copy() {
+        return new CoverRequest(mTitle, mArtist, mAlbum)
+                .setMediaUri(mMediaUri)
+                .setTagArtUri(mTagArtUri)
+                .setIgnoreMisses(mIgnoreMisses)
+                .setSkipCache(mSkipCache)
+                .setBackground(mBackground)
+                .setMaxImageBytes(mMaxImageBytes)
+                .setResolution(mResolution);
+    }
+
+    /**
+     * @return copy of the request data with the same deadline, without cancellation state and transferred bytes
+     */
+    public CoverRequest copyWithDeadline() {
+        CoverRequest copy = copy();
+        copy.mDeadline = mDeadline;
+        return copy;
+    }
+
+    /**
+     * Make this request last at least as long as the other one, e.g. when it does the work for several callers
+     *
+     * @param other request to take the deadline from, if it's later
+     */
+    public synchronized void extendDeadline(CoverRequest other) {
+        mDeadline = Math.max(mDeadline, other.mDeadline);
+    }
+
+    /**
+     * Create a request for a part of the work done on behalf of this one, e.g. for a single source.
+     * Child has the same data and deadline and is cancelled along with this request,
+     * but can also be cancelled on its own without affecting the parent. Bytes child receives
+     * are accounted to the parent too.
+     *
+     * @return child request, should be {@link #detach() detached} when its work is done
+     */
+    public CoverRequest child() {
+        CoverRequest child = copyWithDeadline();
+        child.mParent = this;
+        child.mParentCanceller = child::cancel;
+        addCancelListener(child.mParentCanceller);
+        return child;
+    }
+
+    /**
+     * Stop following cancellation of the parent, see {@link #child()}
+     */
+    public void detach() {
+        if (mParent != null) {
+            mParent.removeCancelListener(mParentCanceller);
+        }
+    }
+
+    /**
+     * @param timeoutMs how long the whole lookup is allowed to take, starting from now
+     */
+    public CoverRequest setTimeout(long timeoutMs) {
+        mDeadline = System.currentTimeMillis() + timeoutMs;
+        return this;
+    }
+
+    /**
+     * @return milliseconds left until deadline, zero if it's already passed,
+     *         {@link Long#MAX_VALUE} if request has no deadline
+     */
+    public long getRemainingMs() {
+        if (mDeadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, mDeadline - System.currentTimeMillis());
+    }
+
+    /**
+     * Cancel the request. All registered cancel listeners are invoked on the calling thread.
+     */
+    public void cancel() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+
+            mCancelled = true;
+            listeners = new ArrayList<>(mCancelListeners);
+            mCancelListeners.clear();
+        }
+
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Register action to run when request is cancelled, e.g. closing the connection.
+     * If request is already cancelled, action is run immediately.
+     *
+     * @param listener action to run on cancel
+     */
+    public void addCancelListener(Runnable listener) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mCancelListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Unregister action previously added with {@link #addCancelListener(Runnable)}, e.g. when
+     * the work it was supposed to cancel is complete.
+     */
+    public synchronized void removeCancelListener(Runnable listener) {
+        mCancelListeners.remove(listener);
+    }
+}
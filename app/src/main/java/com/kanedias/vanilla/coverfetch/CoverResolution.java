@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+/**
+ * Which size of the cover network engines should download. Cover art archive serves
+ * pre-made thumbnails of 250, 500 and 1200 px besides the original upload.
+ *
+ * @author Oleg Chernovskiy
+ */
+public enum CoverResolution {
+
+    THUMB_250("250", "small"),
+    THUMB_500("500", "large"),
+    THUMB_1200("1200", null),
+    ORIGINAL(null, null);
+
+    private final String mThumbnailKey;
+    private final String mLegacyKey;
+
+    CoverResolution(String thumbnailKey, String legacyKey) {
+        mThumbnailKey = thumbnailKey;
+        mLegacyKey = legacyKey;
+    }
+
+    /**
+     * @return key of the thumbnail in cover art archive index or null for the original image
+     */
+    public String getThumbnailKey() {
+        return mThumbnailKey;
+    }
+
+    /**
+     * @return older alias of the thumbnail key, which some index documents still have. Can be null
+     */
+    public String getLegacyKey() {
+        return mLegacyKey;
+    }
+
+    /**
+     * @param name name of the resolution as stored in preferences
+     * @return resolution with this name or {@link #THUMB_500} if it's unknown
+     */
+    public static CoverResolution fromName(String name) {
+        for (CoverResolution resolution : values()) {
+            if (resolution.name().equals(name)) {
+                return resolution;
+            }
+        }
+        return THUMB_500;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.content.SharedPreferences;
+
+/**
+ * User preferences of the plugin, stored in default shared preferences
+ * alongside the ones from plugin commons.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CoverSettings {
+
+    private static final String PREF_RESOLUTION = "cover_resolution";
+    private static final String PREF_WRITE_LIMIT = "cover_write_limit";
+
+    private CoverSettings() {
+    }
+
+    /**
+     * @param prefs default shared preferences
+     * @return size of covers to download, 500px thumbnails by default
+     */
+    public static CoverResolution getResolution(SharedPreferences prefs) {
+        return CoverResolution.fromName(prefs.getString(PREF_RESOLUTION, null));
+    }
+
+    public static void setResolution(SharedPreferences prefs, CoverResolution resolution) {
+        prefs.edit().putString(PREF_RESOLUTION, resolution.name()).apply();
+    }
+
+    /**
+     * @param prefs default shared preferences
+     * @return size limit for written covers or null if they should be written as is
+     */
+    public static CoverWriter.Limit getWriteLimit(SharedPreferences prefs) {
+        String name = prefs.getString(PREF_WRITE_LIMIT, null);
+        for (CoverWriter.Limit limit : CoverWriter.Limit.values()) {
+            if (limit.name().equals(name)) {
+                return limit;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param prefs default shared preferences
+     * @param limit size limit for written covers, null to write them as is
+     */
+    public static void setWriteLimit(SharedPreferences prefs, CoverWriter.Limit limit) {
+        if (limit == null) {
+            prefs.edit().remove(PREF_WRITE_LIMIT).apply();
+            return;
+        }
+        prefs.edit().putString(PREF_WRITE_LIMIT, limit.name()).apply();
+    }
+}
@@ -18,21 +18,21 @@ package com.kanedias.vanilla.coverfetch;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.provider.MediaStore;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -56,21 +56,19 @@ import com.kanedias.vanilla.plugins.PluginUtils;
 import com.kanedias.vanilla.plugins.saf.SafPermissionHandler;
 import com.kanedias.vanilla.plugins.saf.SafUtils;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.UUID;
 
 import static android.Manifest.permission.WRITE_EXTERNAL_STORAGE;
 import static android.view.View.VISIBLE;
 import static com.kanedias.vanilla.plugins.PluginConstants.*;
 import static com.kanedias.vanilla.plugins.PluginUtils.*;
-import static com.kanedias.vanilla.plugins.saf.SafUtils.findInDocumentTree;
 
 /**
  * Main activity of Cover Fetch plugin. This will be presented as a dialog to the user
@@ -106,6 +104,12 @@ public class CoverShowActivity extends DialogActivity {
 
     private static final String PLUGIN_TAG_EDIT_PKG = "com.kanedias.vanilla.audiotag";
     private static final int PICK_IMAGE_REQUEST = 3;
+    private static final long FETCH_TIMEOUT_MS = 60_000;
+
+    /**
+     * How long shared cover is kept in the store for tag editor to read it
+     */
+    private static final long SHARE_PIN_MS = 60 * 60 * 1000;
 
     private SharedPreferences mPrefs;
 
@@ -115,13 +119,26 @@ public class CoverShowActivity extends DialogActivity {
     private ProgressBar mProgressBar;
 
     private SafPermissionHandler mSafHandler;
-    private CoverEngine mEngine = new CoverArchiveEngine();
+    private CoverFetcher mFetcher;
+    private CoverFetcher.Handle mPendingFetch;
+
+    /**
+     * Where currently shown cover came from. Preview is downscaled,
+     * full resolution image is decoded from here when user writes it
+     */
+    private Uri mCoverSource;
+
+    /**
+     * When dialog was opened, in {@link SystemClock#elapsedRealtime()} terms. Reset after first cover is shown
+     */
+    private long mOpenedAt;
 
     private Runnable postPermissionAction;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mOpenedAt = SystemClock.elapsedRealtime();
 
         if (handleLaunchPlugin()) {
             // no UI was required for handling the intent
@@ -130,6 +147,7 @@ public class CoverShowActivity extends DialogActivity {
 
         mSafHandler = new SafPermissionHandler(this);
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mFetcher = CoverEngines.fetcher(this);
 
         setContentView(R.layout.activity_cover_show);
 
@@ -199,7 +217,10 @@ public class CoverShowActivity extends DialogActivity {
         searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
             @Override
             public boolean onQueryTextSubmit(String query) {
-                new ArtworkFetcher().execute(query, null, null, null);
+                // user explicitly asks for this, don't trust previous misses
+                fetchArtwork(new CoverRequest(query, null, null)
+                        .setIgnoreMisses(true)
+                        .setResolution(CoverSettings.getResolution(mPrefs)));
                 return true;
             }
 
@@ -246,32 +267,94 @@ public class CoverShowActivity extends DialogActivity {
                 mSwitcher.setDisplayedChild(0);
                 handleUiIntent(false);
                 return true;
+            case R.id.resolution_option:
+                selectResolution();
+                return true;
+            case R.id.write_limit_option:
+                selectWriteLimit();
+                return true;
+            case R.id.batch_fetch_option:
+                startBatchFetch();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
-    private void handleUiIntent(boolean useLocal) {
-        // check if we already have cover loaded
-        if (useLocal && mCoverImage.getDrawable() != null) {
+    /**
+     * Let user choose size of downloaded covers. Applies to the next lookup
+     */
+    private void selectResolution() {
+        CharSequence[] options = {
+                getString(R.string.resolution_250),
+                getString(R.string.resolution_500),
+                getString(R.string.resolution_1200),
+                getString(R.string.resolution_original)
+        };
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.cover_resolution)
+                .setSingleChoiceItems(options, CoverSettings.getResolution(mPrefs).ordinal(), (dialog, which) -> {
+                    CoverSettings.setResolution(mPrefs, CoverResolution.values()[which]);
+                    dialog.dismiss();
+                })
+                .show();
+    }
+
+    /**
+     * Let user choose whether written covers should be shrunk to a size limit
+     */
+    private void selectWriteLimit() {
+        CharSequence[] options = {
+                getString(R.string.write_limit_none),
+                getString(R.string.write_limit_small),
+                getString(R.string.write_limit_medium)
+        };
+
+        CoverWriter.Limit current = CoverSettings.getWriteLimit(mPrefs);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.write_limit)
+                .setSingleChoiceItems(options, current == null ? 0 : current.ordinal() + 1, (dialog, which) -> {
+                    CoverSettings.setWriteLimit(mPrefs, which == 0 ? null : CoverWriter.Limit.values()[which - 1]);
+                    dialog.dismiss();
+                })
+                .show();
+    }
+
+    /**
+     * Fill in covers for all albums in the folder of the requested file and its subfolders.
+     * Runs in {@link BatchCoverService}, which is private to this app, so this is the only way to start it.
+     */
+    private void startBatchFetch() {
+        if (!checkAndRequestPermissions(this, WRITE_EXTERNAL_STORAGE)) {
+            postPermissionAction = this::startBatchFetch;
             return;
         }
 
-        // we don't have it loaded
-        // check if this is an answer from tag plugin
-        if (useLocal && TextUtils.equals(getIntent().getStringExtra(EXTRA_PARAM_P2P), P2P_READ_ART)) {
-            if (getIntent().hasExtra(EXTRA_PARAM_P2P_VAL) && loadFromTag()) {
-                return;
-            }
+        Uri fileUri = getIntent().getParcelableExtra(EXTRA_PARAM_URI);
+        if (fileUri == null || fileUri.getPath() == null) {
+            // wrong intent passed?
+            return;
         }
 
-        // we didn't receive artwork from tag plugin
-        // try to retrieve from folder.jpg
-        if (useLocal && loadFromFile()) {
+        File folder = new File(fileUri.getPath()).getParentFile();
+        if (folder == null || !folder.isDirectory()) {
+            // file deleted while launching intent or player db is not refreshed
+            return;
+        }
+
+        Intent batch = new Intent(this, BatchCoverService.class);
+        batch.setAction(BatchCoverService.ACTION_BATCH_FETCH);
+        batch.putExtra(BatchCoverService.EXTRA_DIRECTORY, folder.getAbsolutePath());
+        startService(batch);
+        Toast.makeText(this, R.string.batch_fetch_started, Toast.LENGTH_SHORT).show();
+    }
+
+    private void handleUiIntent(boolean useLocal) {
+        // check if we already have cover loaded or are loading it
+        if (useLocal && (mCoverImage.getDrawable() != null || mPendingFetch != null)) {
             return;
         }
 
-        // we can't find image in any of the local sources or were explicitly guided to load from network
-        // try to retrieve it via artwork engine
         String title = getIntent().getStringExtra(EXTRA_PARAM_SONG_TITLE);
         if (title != null && title.contains("No Title")) {
             title = null;
@@ -297,67 +380,109 @@ public class CoverShowActivity extends DialogActivity {
             album = null;
         }
 
-        new ArtworkFetcher().execute(title, artist, album);
-    }
-
-    private boolean loadFromTag() {
-        Uri imgLink = getIntent().getParcelableExtra(EXTRA_PARAM_P2P_VAL);
-        try {
-            ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(imgLink, "r");
-            if (pfd == null) {
-                return false;
-            }
-
-            Bitmap raw = BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor());
-            if (raw == null) {
-                return false;
+        // If reload was requested by user, look up again even if it was a miss recently or is cached
+        CoverRequest request = new CoverRequest(title, artist, album)
+                .setIgnoreMisses(!useLocal)
+                .setSkipCache(!useLocal)
+                .setResolution(CoverSettings.getResolution(mPrefs));
+        if (useLocal) {
+            // engine asks local sources first: artwork from tag plugin, then folder.jpg
+            request.setMediaUri(getIntent().getParcelableExtra(EXTRA_PARAM_URI));
+            if (TextUtils.equals(getIntent().getStringExtra(EXTRA_PARAM_P2P), P2P_READ_ART)) {
+                request.setTagArtUri(getIntent().getParcelableExtra(EXTRA_PARAM_P2P_VAL));
             }
-
-            setCoverImage(raw);
-            return true;
-        } catch (FileNotFoundException e) {
-            Log.e(LOG_TAG, "Passed Uri points to invalid fd! " + imgLink, e);
         }
-        return false;
+        fetchArtwork(request);
     }
 
-    private boolean loadFromFile() {
-        if (PluginUtils.havePermissions(this, WRITE_EXTERNAL_STORAGE)) {
-            return false;
-        }
+    /**
+     * Decode cover image in the resolution it will be shown in the dialog.
+     * Called on background thread.
+     *
+     * @param source uri of the image
+     * @return downscaled bitmap or null if image format is unsupported
+     * @throws IOException if image couldn't be read
+     */
+    private Bitmap decodePreview(Uri source) throws IOException {
+        DisplayMetrics screen = getResources().getDisplayMetrics();
+        int previewSize = Math.min(screen.widthPixels, screen.heightPixels);
+        return CoverDecoder.decodePreview(getContentResolver(), source, previewSize, CoverDecoder.isLowMemory(this));
+    }
 
-        Uri fileUri = getIntent().getParcelableExtra(EXTRA_PARAM_URI);
-        if (fileUri == null || fileUri.getPath() == null) {
-            return false;
-        }
+    /**
+     * Receives bytes of the cover ready to be written
+     */
+    private interface CoverConsumer {
+        void accept(byte[] data);
+    }
 
-        File media = new File(fileUri.getPath());
-        File folderJpg = new File(media.getParentFile(), "folder.jpg");
-        if (!folderJpg.exists()) {
-            return false;
-        }
+    /**
+     * Read shown cover for writing. Runs in background, original bytes are passed as is
+     * if the target accepts their format, otherwise the image is converted. If user asked
+     * to limit written covers, they are shrunk as needed. If original can't be read, write fails:
+     * downscaled preview is never written in its place.
+     *
+     * @param format format required by the target
+     * @param action what to do with the bytes, called on the main thread
+     */
+    private void readCover(CoverWriter.Format format, CoverConsumer action) {
+        Uri source = mCoverSource;
+        CoverWriter.Limit limit = CoverSettings.getWriteLimit(mPrefs);
 
-        Bitmap raw = BitmapFactory.decodeFile(folderJpg.getPath());
-        if (raw == null) {
-            return false;
-        }
+        mFetcher.open(source, uri -> {
+            if (uri == null) {
+                throw new FileNotFoundException("Original of the shown cover is unknown");
+            }
 
-        setCoverImage(raw);
-        return true;
+            if (limit != null) {
+                return CoverWriter.readWithin(getContentResolver(), uri, format, limit);
+            }
+            return CoverWriter.readAs(getContentResolver(), uri, format);
+        }, new CoverFetcher.Callback<byte[]>() {
+            @Override
+            public void onResult(byte[] data) {
+                action.accept(data);
+            }
+
+            @Override
+            public void onError(IOException error) {
+                Toast.makeText(CoverShowActivity.this, getString(R.string.error_writing_file) + error.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
     /**
      * Set the actual cover image for the user to see
      *
      * @param raw raw image bitmap. Should never be null
+     * @param source uri of the original image, to be decoded again in full resolution on write
      */
-    private void setCoverImage(Bitmap raw) {
+    private void setCoverImage(Bitmap raw, Uri source) {
         Drawable image = new BitmapDrawable(getResources(), raw);
+        mCoverSource = source;
         mWriteButton.setEnabled(true);
 
         mCoverImage.setImageDrawable(image);
         mSwitcher.setDisplayedChild(1);
         invalidateOptionsMenu();
+        logFirstFrame("cover");
+    }
+
+    /**
+     * Log how long it took from dialog open to showing the first result, once per dialog.
+     * Posted to the view so it runs after the result is laid out.
+     *
+     * @param outcome what was shown, for the log
+     */
+    private void logFirstFrame(String outcome) {
+        if (mOpenedAt == 0) {
+            return;
+        }
+
+        long openedAt = mOpenedAt;
+        mOpenedAt = 0;
+        mSwitcher.post(() -> Log.d(LOG_TAG, "Dialog open to first frame (" + outcome + "): "
+                + (SystemClock.elapsedRealtime() - openedAt) + " ms"));
     }
 
     /**
@@ -372,36 +497,91 @@ public class CoverShowActivity extends DialogActivity {
      * CLick listener for P2P integration, sends intent to write retrieved cover to local file tag
      */
     public void persistToFile() {
-        // image must be present because this button enables only after it's downloaded
-        Bitmap bitmap = ((BitmapDrawable) mCoverImage.getDrawable()).getBitmap();
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 90, stream);
-        byte[] imgData = stream.toByteArray();
+        Uri source = mCoverSource;
+        CoverWriter.Limit limit = CoverSettings.getWriteLimit(mPrefs);
 
-        Uri uri = null;
-        try {
-            File coversDir = new File(getCacheDir(), "covers");
-            if (!coversDir.exists() && !coversDir.mkdir()) {
-                Log.e(LOG_TAG, "Couldn't create dir for covers! Path " + getCacheDir());
-                return;
+        mFetcher.open(source, uri -> {
+            if (uri == null) {
+                throw new FileNotFoundException("Original of the shown cover is unknown");
             }
 
-            // cleanup old images
-            for (File oldImg : coversDir.listFiles()) {
-                if (!oldImg.delete()) {
-                    Log.w(LOG_TAG, "Couldn't delete old image file! Path " + oldImg);
-                }
+            // preview is downscaled, never write it in place of the original
+            CoverBlobStore store = CoverEngines.store(this);
+            File shared = storeForSharing(store, uri, limit);
+
+            // tag editor reads it later, when user confirms the write
+            File pinned = store.pin(shared, SHARE_PIN_MS);
+            if (pinned == null) {
+                throw new FileNotFoundException("Shared cover was evicted right away. Path " + shared);
+            }
+            return pinned;
+        }, new CoverFetcher.Callback<File>() {
+            @Override
+            public void onResult(File coverFile) {
+                shareWithTagEditor(coverFile);
             }
 
-            // write artwork to file
-            File coverTmpFile = new File(coversDir, UUID.randomUUID().toString());
-            FileOutputStream fos = new FileOutputStream(coverTmpFile);
-            fos.write(imgData);
-            fos.close();
+            @Override
+            public void onError(IOException error) {
+                Log.e(LOG_TAG, "Couldn't share private cover image file to tag editor!", error);
+                Toast.makeText(CoverShowActivity.this, getString(R.string.error_writing_file) + error.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Find or put the cover into the store, in the form tag editor should receive it. Called on background thread.
+     *
+     * @param store store of fetched covers, exposed through file provider
+     * @param uri uri of the original cover
+     * @param limit size limit of written covers, null if none
+     * @return stored cover
+     * @throws IOException if original cover couldn't be read
+     */
+    private File storeForSharing(CoverBlobStore store, Uri uri, CoverWriter.Limit limit) throws IOException {
+        if (limit != null) {
+            // photos fit the budget much better as JPEG
+            byte[] shrunk = CoverWriter.readWithin(getContentResolver(), uri, CoverWriter.Format.JPEG, limit);
+            return store.put(new ByteArrayInputStream(shrunk));
+        }
+
+        // tag editor accepts both JPEG and PNG, share the original as is
+        CoverWriter.Format format = CoverWriter.detectFormat(getContentResolver(), uri);
+        if (format == null) {
+            // convert only exotic formats, losslessly
+            byte[] converted = CoverWriter.readAs(getContentResolver(), uri, CoverWriter.Format.PNG);
+            return store.put(new ByteArrayInputStream(converted));
+        }
+
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            File original = new File(uri.getPath());
+            if (store.isStored(original)) {
+                // fetched from network, already in the store
+                return original;
+            }
+        }
+
+        // tag art, folder.jpg or picked by user
+        InputStream is = getContentResolver().openInputStream(uri);
+        if (is == null) {
+            throw new FileNotFoundException("Couldn't open cover image " + uri);
+        }
+        return store.put(is);
+    }
 
-            // create sharable uri
-            uri = FileProvider.getUriForFile(CoverShowActivity.this, BuildConfig.APPLICATION_ID + ".fileprovider", coverTmpFile);
-        } catch (IOException e) {
+    /**
+     * Share cover with tag editor and ask it to write it to the file tag
+     *
+     * @param coverFile file in cover store, null if cover couldn't be stored
+     */
+    private void shareWithTagEditor(File coverFile) {
+        Uri uri = null;
+        try {
+            if (coverFile != null) {
+                // create sharable uri
+                uri = FileProvider.getUriForFile(CoverShowActivity.this, BuildConfig.APPLICATION_ID + ".fileprovider", coverFile);
+            }
+        } catch (IllegalArgumentException e) {
             Log.e(LOG_TAG, "Couldn't share private cover image file to tag editor!", e);
         } finally {
             Intent request = new Intent(ACTION_LAUNCH_PLUGIN);
@@ -438,17 +618,12 @@ public class CoverShowActivity extends DialogActivity {
             return;
         }
 
-        // image must be present because this button enables only after it's downloaded
-        Bitmap bitmap = ((BitmapDrawable) mCoverImage.getDrawable()).getBitmap();
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, stream);
-        byte[] imgData = stream.toByteArray();
-
         File folderTarget = new File(mediaFile.getParent(), name);
         if (SafUtils.isSafNeeded(mediaFile, this)) {
             if (mPrefs.contains(PREF_SDCARD_URI)) {
                 // we already got the permission!
-                writeThroughSaf(imgData, mediaFile, folderTarget.getName());
+                readCover(CoverWriter.Format.forFileName(name),
+                        imgData -> writeThroughSaf(imgData, mediaFile, folderTarget.getName()));
                 return;
             }
 
@@ -456,7 +631,8 @@ public class CoverShowActivity extends DialogActivity {
             postPermissionAction = () -> persistAsSeparateFile(name);
             mSafHandler.handleFile(mediaFile);
         } else {
-            writeThroughFile(imgData, mediaFile, folderTarget);
+            readCover(CoverWriter.Format.forFileName(name),
+                    imgData -> writeThroughFile(imgData, mediaFile, folderTarget));
         }
     }
 
@@ -475,6 +651,7 @@ public class CoverShowActivity extends DialogActivity {
 
             // rescan original file
             MediaScannerConnection.scanFile(this, new String[]{original.getAbsolutePath()}, null, null);
+            CoverEngines.artworkIndex(this).invalidate(original.getParentFile());
             Toast.makeText(this, R.string.file_written_successfully, Toast.LENGTH_SHORT).show();
         } catch (Exception e) {
             Toast.makeText(this, getString(R.string.error_writing_file) + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
@@ -487,30 +664,29 @@ public class CoverShowActivity extends DialogActivity {
      * Write changes through SAF framework - the only way to do it in Android > 4.4 when working with SD card
      */
     private void writeThroughSaf(byte[] data, File original, String name) {
-        DocumentFile originalRef;
         // no sorcery can allow you to gain URI to the document representing file you've been provided with
-        // you have to find it again now using Document API
-
-        // /storage/volume/Music/some.mp3 will become [storage, volume, music, some.mp3]
-        List<String> pathSegments = new ArrayList<>(Arrays.asList(original.getAbsolutePath().split("/")));
+        // you have to find it again now using Document API. Resolver remembers directories it has found
         Uri allowedSdRoot = Uri.parse(mPrefs.getString(PREF_SDCARD_URI, ""));
-        originalRef = findInDocumentTree(DocumentFile.fromTreeUri(this, allowedSdRoot), pathSegments);
+        SafDocumentResolver resolver = CoverEngines.safResolver(this, allowedSdRoot);
 
-        if (originalRef == null || originalRef.getParentFile() == null) {
+        File parent = original.getParentFile();
+        DocumentFile parentRef = resolver.resolveDir(parent);
+        if (parentRef == null) {
             // nothing selected or invalid file?
             Toast.makeText(this, R.string.saf_nothing_selected, Toast.LENGTH_LONG).show();
             return;
         }
 
-        // check again that we have access to this file
-        if (!originalRef.canWrite()) {
+        // check again that we have access to this folder
+        if (!parentRef.canWrite()) {
             // we don't. User selected wrong URI for sdcard access?
+            resolver.invalidate(parent);
             postPermissionAction = () -> persistAsSeparateFile(name);
             mSafHandler.handleFile(original);
             return;
         }
 
-        DocumentFile folderJpgRef = originalRef.getParentFile().createFile("image/*", name);
+        DocumentFile folderJpgRef = resolver.createOrReplace(parent, name, "image/*");
         if (folderJpgRef == null) {
             // couldn't create file?
             Toast.makeText(this, R.string.saf_write_error, Toast.LENGTH_LONG).show();
@@ -518,7 +694,8 @@ public class CoverShowActivity extends DialogActivity {
         }
 
         try {
-            ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(folderJpgRef.getUri(), "rw");
+            // file may already exist, truncate it
+            ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(folderJpgRef.getUri(), "rwt");
             if (pfd == null) {
                 // should not happen
                 Log.e(LOG_TAG, "SAF provided incorrect URI!" + folderJpgRef.getUri());
@@ -531,8 +708,10 @@ public class CoverShowActivity extends DialogActivity {
 
             // rescan original file
             MediaScannerConnection.scanFile(this, new String[]{original.getAbsolutePath()}, null, null);
+            CoverEngines.artworkIndex(this).invalidate(original.getParentFile());
             Toast.makeText(this, R.string.file_written_successfully, Toast.LENGTH_SHORT).show();
         } catch (Exception e) {
+            resolver.invalidate(parent);
             Toast.makeText(this, getString(R.string.saf_write_error) + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
             Log.e(LOG_TAG, "Failed to write to file descriptor provided by SAF!", e);
         }
@@ -571,40 +750,84 @@ public class CoverShowActivity extends DialogActivity {
     }
 
     /**
-     * External artwork fetcher (using network). Operates asynchronously, notifies dialog when finishes.
-     * On no result (no artwork, couldn't fetch etc.) shows toast about this, on success updates dialog text.
+     * Start artwork lookup, local sources first, network after. Lookup and decoding both run in background,
+     * dialog is notified when they finish. On no result (no artwork, couldn't fetch etc.)
+     * shows toast about this, on success updates dialog image.
+     * <p/>
+     * Previous lookup, if any, is cancelled, so rapid searches don't queue behind each other.
+     *
+     * @param request what to search for
      */
-    private class ArtworkFetcher extends AsyncTask<String, Void, byte[]> {
-        @Override
-        protected void onPreExecute() {
-            // switch view flipper to the progress bar, hide menus
-            mSwitcher.setDisplayedChild(0);
-            mProgressBar.setVisibility(VISIBLE);
-            invalidateOptionsMenu();
+    private void fetchArtwork(CoverRequest request) {
+        if (mPendingFetch != null) {
+            mPendingFetch.cancel();
         }
 
-        @Override
-        protected byte[] doInBackground(String... params) {
-            return mEngine.getCover(params[0], params[1], params[2]);
-        }
+        // switch view flipper to the progress bar, hide menus
+        mSwitcher.setDisplayedChild(0);
+        mProgressBar.setVisibility(VISIBLE);
+        invalidateOptionsMenu();
 
-        @Override
-        protected void onPostExecute(byte[] imgData) {
-            mProgressBar.setVisibility(View.INVISIBLE);
-
-            if (imgData == null || imgData.length == 0) {
-                // no artwork - show excuse
-                Toast.makeText(CoverShowActivity.this, R.string.cover_not_found, Toast.LENGTH_SHORT).show();
-                mSwitcher.setDisplayedChild(2);
-                invalidateOptionsMenu();
-                return;
+        mPendingFetch = mFetcher.fetch(request, FETCH_TIMEOUT_MS, Preview::new, new CoverFetcher.Callback<Preview>() {
+            @Override
+            public void onResult(Preview preview) {
+                mPendingFetch = null;
+                mProgressBar.setVisibility(View.INVISIBLE);
+
+                if (preview == null) {
+                    showNotFound();
+                    return;
+                }
+
+                if (preview.bitmap == null) {
+                    Toast.makeText(CoverShowActivity.this, R.string.invalid_cover_image_format, Toast.LENGTH_LONG).show();
+                    showNotFound();
+                    return;
+                }
+                setCoverImage(preview.bitmap, preview.source);
             }
 
-            Bitmap raw = BitmapFactory.decodeByteArray(imgData, 0, imgData.length);
-            if (raw == null) {
-                Toast.makeText(CoverShowActivity.this, R.string.invalid_cover_image_format, Toast.LENGTH_LONG).show();
+            @Override
+            public void onError(IOException error) {
+                mPendingFetch = null;
+                mProgressBar.setVisibility(View.INVISIBLE);
+                showNotFound();
             }
-            setCoverImage(raw);
+        });
+    }
+
+    /**
+     * No artwork - show excuse
+     */
+    private void showNotFound() {
+        Toast.makeText(CoverShowActivity.this, R.string.cover_not_found, Toast.LENGTH_SHORT).show();
+        mSwitcher.setDisplayedChild(2);
+        invalidateOptionsMenu();
+        logFirstFrame("not found");
+    }
+
+    /**
+     * Cover decoded for showing in the dialog, along with where it came from
+     */
+    private class Preview {
+
+        private final Uri source;
+        private final Bitmap bitmap;
+
+        private Preview(Uri source) throws IOException {
+            this.source = source;
+            this.bitmap = decodePreview(source);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // nobody will see the result, stop wasting traffic
+        if (mPendingFetch != null) {
+            mPendingFetch.cancel();
+            mPendingFetch = null;
         }
     }
 
@@ -625,13 +848,31 @@ public class CoverShowActivity extends DialogActivity {
                     return;
                 }
 
-                try {
-                    Bitmap bitmap = MediaStore.Images.Media.getBitmap(getContentResolver(), data.getData());
-                    mCoverImage.setImageBitmap(bitmap);
-                } catch (IOException e) {
-                    Toast.makeText(this, getString(R.string.error_decoding_image) + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-                    Log.e(LOG_TAG, "Failed to decode bitmap from passed intent image!", e);
+                if (mPendingFetch != null) {
+                    // user's choice takes precedence
+                    mPendingFetch.cancel();
                 }
+
+                mPendingFetch = mFetcher.open(data.getData(), Preview::new, new CoverFetcher.Callback<Preview>() {
+                    @Override
+                    public void onResult(Preview preview) {
+                        mPendingFetch = null;
+                        if (preview.bitmap == null) {
+                            onError(new IOException(getString(R.string.invalid_cover_image_format)));
+                            return;
+                        }
+
+                        mCoverSource = preview.source;
+                        mCoverImage.setImageBitmap(preview.bitmap);
+                    }
+
+                    @Override
+                    public void onError(IOException error) {
+                        mPendingFetch = null;
+                        Toast.makeText(CoverShowActivity.this, getString(R.string.error_decoding_image) + error.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+                        Log.e(LOG_TAG, "Failed to decode bitmap from passed intent image!", error);
+                    }
+                });
             default:
                 super.onActivityResult(requestCode, resultCode, data);
         }
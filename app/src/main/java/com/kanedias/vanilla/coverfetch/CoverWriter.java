@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import com.kanedias.vanilla.plugins.PluginUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Prepares cover bytes for writing. Original image is written as is whenever its format
+ * is accepted by the target, so downloaded JPEGs are neither recompressed nor bloated into PNGs.
+ * Image is decoded and encoded again only if target needs another format, or if user asked
+ * to keep written covers within a {@link Limit}.
+ * <p/>
+ * Everything here does I/O and possibly heavy encoding, so it must be called from background thread.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class CoverWriter {
+
+    private static final int JPEG_QUALITY = 90;
+    private static final int MIN_JPEG_QUALITY = 50;
+    private static final float SCALE_STEP = 0.8f;
+
+    /**
+     * Format of the written cover
+     */
+    public enum Format {
+        JPEG("image/jpeg", Bitmap.CompressFormat.JPEG),
+        PNG("image/png", Bitmap.CompressFormat.PNG);
+
+        private final String mMimeType;
+        private final Bitmap.CompressFormat mCompressFormat;
+
+        Format(String mimeType, Bitmap.CompressFormat compressFormat) {
+            mMimeType = mimeType;
+            mCompressFormat = compressFormat;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        /**
+         * @param mimeType mime type of the image
+         * @return format with this mime type or null if it's not one of the writable formats
+         */
+        public static Format forMimeType(String mimeType) {
+            for (Format format : values()) {
+                if (format.mMimeType.equals(mimeType)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param fileName name of the target file, e.g. {@code folder.jpg}
+         * @return format expected from the file extension, JPEG if extension is unknown
+         */
+        public static Format forFileName(String fileName) {
+            return fileName.toLowerCase(Locale.ROOT).endsWith(".png") ? PNG : JPEG;
+        }
+    }
+
+    /**
+     * Size limit for written covers, so that embedded art doesn't grow every tagged file by megabytes
+     */
+    public enum Limit {
+        SMALL(600, 150 * 1024),
+        MEDIUM(1000, 400 * 1024);
+
+        private final int mMaxSize;
+        private final long mMaxBytes;
+
+        Limit(int maxSize, long maxBytes) {
+            mMaxSize = maxSize;
+            mMaxBytes = maxBytes;
+        }
+
+        /**
+         * @return max width and height of the written image, in pixels
+         */
+        public int getMaxSize() {
+            return mMaxSize;
+        }
+
+        /**
+         * @return max size of the written image, in bytes
+         */
+        public long getMaxBytes() {
+            return mMaxBytes;
+        }
+    }
+
+    private CoverWriter() {
+    }
+
+    /**
+     * Read the cover in required format, shrinking it to fit the limit. Original bytes are
+     * returned if they already fit, otherwise image is downscaled and recompressed, with lower
+     * quality or size each time, until it does.
+     *
+     * @param resolver resolver to open the image with
+     * @param source uri of the original image, either {@code file://} or {@code content://}
+     * @param required format the target expects
+     * @param limit size limit of the result
+     * @return cover that fits the limit
+     * @throws IOException if image couldn't be read or decoded
+     */
+    public static byte[] readWithin(ContentResolver resolver, Uri source, Format required, Limit limit) throws IOException {
+        BitmapFactory.Options bounds = readBounds(resolver, source);
+        if (Format.forMimeType(bounds.outMimeType) == required
+                && Math.max(bounds.outWidth, bounds.outHeight) <= limit.mMaxSize) {
+            try (InputStream is = open(resolver, source)) {
+                byte[] original = PluginUtils.readFully(is);
+                if (original.length <= limit.mMaxBytes) {
+                    return original;
+                }
+            }
+        }
+
+        Bitmap bitmap = CoverDecoder.decodeBounded(resolver, source, limit.mMaxSize);
+        if (bitmap == null) {
+            throw new IOException("Unsupported cover image format " + source);
+        }
+
+        int quality = JPEG_QUALITY;
+        try {
+            while (true) {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                bitmap.compress(required.mCompressFormat, quality, stream);
+                if (stream.size() <= limit.mMaxBytes || Math.min(bitmap.getWidth(), bitmap.getHeight()) < 32) {
+                    return stream.toByteArray();
+                }
+
+                if (required == Format.JPEG && quality > MIN_JPEG_QUALITY) {
+                    // first trade quality, it's less noticeable than size
+                    quality -= 10;
+                    continue;
+                }
+
+                Bitmap smaller = Bitmap.createScaledBitmap(bitmap,
+                        (int) (bitmap.getWidth() * SCALE_STEP), (int) (bitmap.getHeight() * SCALE_STEP), true);
+                bitmap.recycle();
+                bitmap = smaller;
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Read the cover in required format
+     *
+     * @param resolver resolver to open the image with
+     * @param source uri of the original image, either {@code file://} or {@code content://}
+     * @param required format the target expects
+     * @return original bytes if image already is in required format, converted image otherwise
+     * @throws IOException if image couldn't be read or decoded
+     */
+    public static byte[] readAs(ContentResolver resolver, Uri source, Format required) throws IOException {
+        Format original = detectFormat(resolver, source);
+        if (original == required) {
+            try (InputStream is = open(resolver, source)) {
+                return PluginUtils.readFully(is);
+            }
+        }
+        return encode(CoverDecoder.decodeFull(resolver, source), required, source);
+    }
+
+    private static byte[] encode(Bitmap bitmap, Format format, Uri source) throws IOException {
+        if (bitmap == null) {
+            throw new IOException("Unsupported cover image format " + source);
+        }
+
+        try {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            bitmap.compress(format.mCompressFormat, JPEG_QUALITY, stream);
+            return stream.toByteArray();
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * @param resolver resolver to open the image with
+     * @param source uri of the image
+     * @return format of the image or null if it's not one of the writable formats
+     * @throws IOException if image couldn't be read
+     */
+    public static Format detectFormat(ContentResolver resolver, Uri source) throws IOException {
+        return Format.forMimeType(readBounds(resolver, source).outMimeType);
+    }
+
+    private static BitmapFactory.Options readBounds(ContentResolver resolver, Uri source) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream is = open(resolver, source)) {
+            BitmapFactory.decodeStream(is, null, bounds);
+        }
+        return bounds;
+    }
+
+    private static InputStream open(ContentResolver resolver, Uri source) throws IOException {
+        InputStream is = resolver.openInputStream(source);
+        if (is == null) {
+            throw new FileNotFoundException("Couldn't open cover image " + source);
+        }
+        return is;
+    }
+}
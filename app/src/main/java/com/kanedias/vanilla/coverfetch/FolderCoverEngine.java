@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.net.Uri;
+
+import java.io.File;
+
+/**
+ * Local cover engine that looks for artwork file ({@code folder.jpg}, {@code cover.png} etc.)
+ * next to the requested media file. Directories are looked up in {@link LocalArtworkIndex},
+ * so repeated lookups don't list them again, only check their modification time.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class FolderCoverEngine implements CoverEngine {
+
+    private final LocalArtworkIndex mIndex;
+
+    /**
+     * @param index index of artwork in music directories
+     */
+    public FolderCoverEngine(LocalArtworkIndex index) {
+        mIndex = index;
+    }
+
+    @Override
+    public File getCover(CoverRequest request) {
+        Uri fileUri = request.getMediaUri();
+        if (fileUri == null || fileUri.getPath() == null) {
+            return null;
+        }
+
+        File mediaDir = new File(fileUri.getPath()).getParentFile();
+        if (mediaDir == null) {
+            return null;
+        }
+
+        // removed or added artwork changes modification time of the directory, index checks it
+        return mIndex.find(mediaDir);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting request rate to a single host. Requests reserve the next free slot
+ * in order of arrival and sleep until it comes, so waiting requests form a FIFO queue
+ * and nobody is starved.
+ * <p/>
+ * Up to {@code burst} requests can go immediately after the host was idle for a while,
+ * after that they are spaced evenly according to the rate. Host can also be paused as a whole,
+ * e.g. when it asked us to come back later with {@code Retry-After}.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class HostRateLimiter {
+
+    /**
+     * Sleeping requests wake up this often to check whether they were cancelled
+     */
+    private static final long CANCEL_CHECK_MS = 250;
+
+    /**
+     * Something that can tell the waiting request is not needed anymore
+     */
+    public interface CancelSignal {
+        boolean isCancelled();
+    }
+
+    private final long mIntervalMs;
+    private final long mToleranceMs;
+
+    /**
+     * Theoretical arrival time of the next request, in {@link System#currentTimeMillis()} terms
+     */
+    private long mNextSlot;
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicLong mAcquired = new AtomicLong();
+    private final AtomicLong mDelayed = new AtomicLong();
+    private final AtomicLong mTotalWaitMs = new AtomicLong();
+    private final AtomicLong mMaxWaitMs = new AtomicLong();
+
+    /**
+     * @param requestsPerSecond sustained request rate, e.g. 1 for musicbrainz
+     * @param burst how many requests can go at once after the host was idle
+     */
+    public HostRateLimiter(double requestsPerSecond, int burst) {
+        mIntervalMs = (long) Math.ceil(1000 / requestsPerSecond);
+        mToleranceMs = (Math.max(burst, 1) - 1) * mIntervalMs;
+    }
+
+    /**
+     * Wait for the turn to send a request
+     *
+     * @param signal checked while waiting, if it reports cancellation the wait is aborted
+     * @throws InterruptedIOException if waiting thread was interrupted or request was cancelled
+     */
+    public void acquire(CancelSignal signal) throws InterruptedIOException {
+        long waitMs = reserve();
+        mAcquired.incrementAndGet();
+        if (waitMs == 0) {
+            return;
+        }
+
+        mDelayed.incrementAndGet();
+        mTotalWaitMs.addAndGet(waitMs);
+        updateMaxWait(waitMs);
+
+        mQueueDepth.incrementAndGet();
+        try {
+            sleep(waitMs, signal);
+        } finally {
+            mQueueDepth.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wait until the host is idle: nobody is queued and the whole burst is available.
+     * Background requests call this before {@link #acquire(CancelSignal)}, so they only take
+     * slots interactive requests don't need and never make them wait longer than one interval.
+     *
+     * @param signal checked while waiting, if it reports cancellation the wait is aborted
+     * @throws InterruptedIOException if waiting thread was interrupted or request was cancelled
+     */
+    public void awaitIdle(CancelSignal signal) throws InterruptedIOException {
+        while (mQueueDepth.get() > 0 || !isIdle()) {
+            sleep(CANCEL_CHECK_MS, signal);
+        }
+    }
+
+    private synchronized boolean isIdle() {
+        return mNextSlot <= System.currentTimeMillis();
+    }
+
+    /**
+     * Don't let any requests through until specified time. Already queued requests
+     * keep their order, but are shifted past the pause.
+     *
+     * @param untilMs time in {@link System#currentTimeMillis()} terms when host can be queried again
+     */
+    public synchronized void pauseUntil(long untilMs) {
+        mNextSlot = Math.max(mNextSlot, untilMs + mToleranceMs);
+    }
+
+    private synchronized long reserve() {
+        long now = System.currentTimeMillis();
+        mNextSlot = Math.max(mNextSlot, now);
+
+        long allowedAt = mNextSlot - mToleranceMs;
+        mNextSlot += mIntervalMs;
+        return Math.max(0, allowedAt - now);
+    }
+
+    private void updateMaxWait(long waitMs) {
+        long max = mMaxWaitMs.get();
+        while (waitMs > max && !mMaxWaitMs.compareAndSet(max, waitMs)) {
+            max = mMaxWaitMs.get();
+        }
+    }
+
+    /**
+     * Sleep in short steps, checking the cancel signal in between
+     */
+    static void sleep(long waitMs, CancelSignal signal) throws InterruptedIOException {
+        long wakeAt = System.currentTimeMillis() + waitMs;
+        try {
+            long remaining = waitMs;
+            while (remaining > 0) {
+                if (signal != null && signal.isCancelled()) {
+                    throw new InterruptedIOException("Cancelled while waiting for rate limiter");
+                }
+
+                Thread.sleep(Math.min(remaining, CANCEL_CHECK_MS));
+                remaining = wakeAt - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for rate limiter");
+        }
+    }
+
+    /**
+     * @return number of requests currently waiting for their turn
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * @return total number of requests let through
+     */
+    public long getAcquiredCount() {
+        return mAcquired.get();
+    }
+
+    /**
+     * @return number of requests that had to wait for their turn
+     */
+    public long getDelayedCount() {
+        return mDelayed.get();
+    }
+
+    /**
+     * @return time all requests spent waiting, in milliseconds
+     */
+    public long getTotalWaitMs() {
+        return mTotalWaitMs.get();
+    }
+
+    /**
+     * @return longest wait of a single request, in milliseconds
+     */
+    public long getMaxWaitMs() {
+        return mMaxWaitMs.get();
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index of artwork files already present in music directories, e.g. {@code folder.jpg},
+ * {@code Cover.png} or {@code front.jpeg}. Maps directory to the name of its artwork file,
+ * or to nothing if directory was scanned and has none, so lookups don't touch the storage at all.
+ * <p/>
+ * Directories are listed once and then only when their modification time changes, which is
+ * when files are added, removed or renamed there. The index is kept as append-only log on disk,
+ * so every scanned directory costs one short line, and is compacted on load.
+ * <p/>
+ * Directories are listed without holding the lock of the index, so a long {@link #scan(File)}
+ * doesn't block interactive lookups.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class LocalArtworkIndex {
+
+    private static final String TAG = LocalArtworkIndex.class.getSimpleName();
+
+    /**
+     * Recognized artwork names in order of preference, compared case-insensitively
+     */
+    private static final String[] ART_NAMES = {"folder", "cover", "front", "album", "albumart"};
+    private static final String[] ART_EXTENSIONS = {"jpg", "jpeg", "png", "webp"};
+
+    /**
+     * Directory state as of the last scan
+     */
+    private static class Entry {
+
+        private final long mtime;
+
+        /**
+         * Name of the artwork file in the directory, empty if there's none
+         */
+        private final String artName;
+
+        private Entry(long mtime, String artName) {
+            this.mtime = mtime;
+            this.artName = artName;
+        }
+    }
+
+    private final File mLogFile;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private int mLogLines;
+    private boolean mLoaded;
+
+    /**
+     * @param logFile file to persist the index in, is created if missing
+     */
+    public LocalArtworkIndex(File logFile) {
+        mLogFile = logFile;
+    }
+
+    /**
+     * Find artwork in the directory. If directory was indexed and hasn't changed since,
+     * answer comes from memory at the cost of one stat, otherwise the directory is listed and remembered.
+     *
+     * @param dir directory to look in
+     * @return artwork file or null if directory has none
+     */
+    public File find(File dir) {
+        long mtime = dir.lastModified();
+        Entry entry = getEntry(dir.getPath());
+        if (entry == null || entry.mtime != mtime) {
+            // new directory or artwork may have been added, removed or renamed
+            entry = index(dir, mtime, dir.listFiles());
+        }
+
+        if (entry == null || entry.artName.isEmpty()) {
+            return null;
+        }
+        return new File(dir, entry.artName);
+    }
+
+    /**
+     * Walk the tree and (re-)index directories that changed since the last scan.
+     * Unchanged directories are not listed, only their modification time is checked.
+     *
+     * @param root root of the tree, e.g. music folder
+     * @return number of directories that had to be listed
+     */
+    public int scan(File root) {
+        // unchanged directories are not listed, so their subdirectories are taken from the index
+        List<String> indexed;
+        synchronized (this) {
+            ensureLoaded();
+            indexed = new ArrayList<>(mEntries.keySet());
+        }
+
+        Map<String, List<String>> knownSubdirs = new HashMap<>();
+        for (String path : indexed) {
+            String parent = new File(path).getParent();
+            if (parent == null) {
+                continue;
+            }
+
+            List<String> siblings = knownSubdirs.get(parent);
+            if (siblings == null) {
+                siblings = new ArrayList<>();
+                knownSubdirs.put(parent, siblings);
+            }
+            siblings.add(path);
+        }
+        return scanTree(root, knownSubdirs);
+    }
+
+    /**
+     * Forget what's known about the directory, e.g. after writing artwork into it.
+     * It will be listed again on the next lookup.
+     *
+     * @param dir directory that changed
+     */
+    public synchronized void invalidate(File dir) {
+        ensureLoaded();
+
+        if (mEntries.remove(dir.getPath()) != null) {
+            append(dir.getPath(), null);
+        }
+    }
+
+    private int scanTree(File dir, Map<String, List<String>> knownSubdirs) {
+        File[] children = listIfChanged(dir);
+        if (children == null) {
+            // unchanged, but subdirectories may have changed on their own
+            int listed = 0;
+            List<String> subdirs = knownSubdirs.get(dir.getPath());
+            if (subdirs != null) {
+                for (String path : subdirs) {
+                    listed += scanTree(new File(path), knownSubdirs);
+                }
+            }
+            return listed;
+        }
+
+        int listed = 1;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                listed += scanTree(child, knownSubdirs);
+            }
+        }
+        return listed;
+    }
+
+    /**
+     * @return directory contents if it changed since the last scan (index is updated then), null otherwise
+     */
+    private File[] listIfChanged(File dir) {
+        long mtime = dir.lastModified();
+        Entry known = getEntry(dir.getPath());
+        if (known != null && known.mtime == mtime) {
+            return null;
+        }
+
+        File[] children = dir.listFiles();
+        index(dir, mtime, children);
+        return children == null ? new File[0] : children;
+    }
+
+    private synchronized Entry getEntry(String dir) {
+        ensureLoaded();
+        return mEntries.get(dir);
+    }
+
+    /**
+     * Find artwork among directory contents and remember it. Contents are examined without the lock held.
+     *
+     * @param dir listed directory
+     * @param mtime modification time of the directory, taken before it was listed
+     * @param children directory contents, null if it couldn't be listed
+     * @return new entry of the directory or null if it couldn't be listed. Unreadable directories
+     *         are not remembered, e.g. storage may be not mounted yet, they are listed again next time
+     */
+    private Entry index(File dir, long mtime, File[] children) {
+        if (children == null) {
+            return null;
+        }
+
+        String artName = "";
+        int bestRank = Integer.MAX_VALUE;
+        for (File child : children) {
+            int rank = artRank(child.getName());
+            if (rank < bestRank && child.isFile()) {
+                bestRank = rank;
+                artName = child.getName();
+            }
+        }
+
+        Entry entry = new Entry(mtime, artName);
+        synchronized (this) {
+            ensureLoaded();
+            mEntries.put(dir.getPath(), entry);
+            append(dir.getPath(), entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @return preference of the file as artwork, lower is better, {@link Integer#MAX_VALUE} if it's not artwork
+     */
+    private static int artRank(String fileName) {
+        int extStart = fileName.lastIndexOf('.');
+        if (extStart <= 0) {
+            return Integer.MAX_VALUE;
+        }
+
+        String base = fileName.substring(0, extStart).toLowerCase(Locale.ROOT);
+        String ext = fileName.substring(extStart + 1).toLowerCase(Locale.ROOT);
+        for (int i = 0; i < ART_NAMES.length; ++i) {
+            if (!ART_NAMES[i].equals(base)) {
+                continue;
+            }
+
+            for (int j = 0; j < ART_EXTENSIONS.length; ++j) {
+                if (ART_EXTENSIONS[j].equals(ext)) {
+                    return i * ART_EXTENSIONS.length + j;
+                }
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Load the log, later lines override earlier ones. Rewrite it if it has grown
+     * much larger than the index itself.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!mLogFile.exists()) {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mLogFile), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mLogLines++;
+
+                // format: mtime \t artwork name \t directory; mtime is -1 for removed entries
+                String[] parts = line.split("\t", 3);
+                if (parts.length != 3) {
+                    continue;
+                }
+
+                long mtime = Long.parseLong(parts[0]);
+                if (mtime < 0) {
+                    mEntries.remove(parts[2]);
+                } else {
+                    mEntries.put(parts[2], new Entry(mtime, parts[1]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Artwork index is corrupted, starting from scratch", e);
+            mEntries.clear();
+            compact();
+            return;
+        }
+
+        if (mLogLines > 2 * mEntries.size() + 64) {
+            compact();
+        }
+    }
+
+    private void append(String dir, Entry entry) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(mLogFile, true), "UTF-8")) {
+            writer.write(formatLine(dir, entry));
+            mLogLines++;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't persist artwork index entry for " + dir, e);
+        }
+    }
+
+    private void compact() {
+        File compacted = new File(mLogFile.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(compacted), "UTF-8")) {
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                writer.write(formatLine(entry.getKey(), entry.getValue()));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't compact artwork index", e);
+            compacted.delete();
+            return;
+        }
+
+        if (!compacted.renameTo(mLogFile)) {
+            Log.w(TAG, "Couldn't replace artwork index with compacted one. Path " + mLogFile);
+            compacted.delete();
+            return;
+        }
+        mLogLines = mEntries.size();
+    }
+
+    private static String formatLine(String dir, Entry entry) {
+        if (entry == null) {
+            return -1 + "\t\t" + dir + '\n';
+        }
+        return entry.mtime + "\t" + entry.artName + '\t' + dir + '\n';
+    }
+}
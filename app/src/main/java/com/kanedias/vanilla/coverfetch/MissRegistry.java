@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.content.SharedPreferences;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent registry of lookups that returned nothing. Each miss is remembered for a while,
+ * and every repeated miss for the same key doubles that period, so obscure tracks stop
+ * hammering the API on every launch.
+ * <p/>
+ * Records are kept in shared preferences as {@code "<failures>:<expires-at-millis>"}.
+ * Every change rewrites the whole preferences file, so it's kept small: records that expired
+ * long ago are dropped, and when there are too many of them the ones expiring soonest are evicted.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class MissRegistry {
+
+    private static final long BASE_TTL_MS = 60 * 60 * 1000L; // 1 hour
+    private static final long MAX_TTL_MS = 7 * 24 * 60 * 60 * 1000L; // 1 week
+
+    /**
+     * Expired record still counts failures, so repeated misses back off longer.
+     * After this period it's not worth keeping anymore
+     */
+    private static final long STALE_AFTER_MS = MAX_TTL_MS;
+
+    /**
+     * Registry is trimmed to this size, e.g. after a batch lookup over a large obscure library
+     */
+    private static final int MAX_RECORDS = 2048;
+
+    private final SharedPreferences mStore;
+    private int mRecordCount;
+
+    /**
+     * Loads and trims the records, so should not be created on the main thread.
+     *
+     * @param store preferences to keep miss records in. Should be dedicated to this registry.
+     */
+    public MissRegistry(SharedPreferences store) {
+        mStore = store;
+        prune();
+    }
+
+    /**
+     * @param key query key, as produced by {@link CoverKeys#hashed(String)}
+     * @return true if this key was recently a miss and lookup should be skipped
+     */
+    public synchronized boolean isBackedOff(String key) {
+        String record = mStore.getString(key, null);
+        if (record == null) {
+            return false;
+        }
+
+        long expiresAt = parseExpiry(record);
+        if (isStale(expiresAt, System.currentTimeMillis())) {
+            forget(key);
+        }
+        return System.currentTimeMillis() < expiresAt;
+    }
+
+    /**
+     * Record a miss for the key, extending back-off period exponentially
+     * @param key query key that returned nothing
+     */
+    public synchronized void recordMiss(String key) {
+        String record = mStore.getString(key, null);
+        if (record != null && isStale(parseExpiry(record), System.currentTimeMillis())) {
+            // too long ago to count
+            record = null;
+        }
+        int failures = record == null ? 1 : parseFailures(record) + 1;
+
+        // 1h, 2h, 4h ... up to a week
+        long ttl = BASE_TTL_MS << Math.min(failures - 1, 30);
+        if (ttl <= 0 || ttl > MAX_TTL_MS) {
+            ttl = MAX_TTL_MS;
+        }
+
+        long expiresAt = System.currentTimeMillis() + ttl;
+        if (!mStore.contains(key)) {
+            mRecordCount++;
+        }
+        mStore.edit().putString(key, failures + ":" + expiresAt).apply();
+
+        if (mRecordCount > MAX_RECORDS) {
+            prune();
+        }
+    }
+
+    /**
+     * Forget the miss record, next lookup will go to the network regardless of back-off.
+     * Also used when the lookup finally succeeds.
+     * @param key query key to forget
+     */
+    public synchronized void forget(String key) {
+        if (mStore.contains(key)) {
+            mRecordCount--;
+            mStore.edit().remove(key).apply();
+        }
+    }
+
+    /**
+     * Drop stale records and, if there are still more than {@link #MAX_RECORDS},
+     * the ones expiring soonest, down to three quarters of the limit so it's not repeated on every miss
+     */
+    private synchronized void prune() {
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = mStore.edit();
+        List<Map.Entry<String, Long>> alive = new ArrayList<>();
+        for (Map.Entry<String, ?> record : mStore.getAll().entrySet()) {
+            long expiresAt = record.getValue() instanceof String ? parseExpiry((String) record.getValue()) : 0;
+            if (isStale(expiresAt, now)) {
+                editor.remove(record.getKey());
+                continue;
+            }
+            alive.add(new AbstractMap.SimpleEntry<>(record.getKey(), expiresAt));
+        }
+
+        if (alive.size() > MAX_RECORDS) {
+            Collections.sort(alive, (r1, r2) -> r1.getValue() < r2.getValue() ? -1 : (r1.getValue().equals(r2.getValue()) ? 0 : 1));
+            List<Map.Entry<String, Long>> evicted = alive.subList(0, alive.size() - MAX_RECORDS * 3 / 4);
+            for (Map.Entry<String, Long> record : evicted) {
+                editor.remove(record.getKey());
+            }
+            evicted.clear();
+        }
+
+        editor.apply();
+        mRecordCount = alive.size();
+    }
+
+    private static boolean isStale(long expiresAt, long now) {
+        return now - expiresAt > STALE_AFTER_MS;
+    }
+
+    private static int parseFailures(String record) {
+        try {
+            return Integer.parseInt(record.substring(0, record.indexOf(':')));
+        } catch (RuntimeException e) {
+            // corrupted record, start from scratch
+            return 0;
+        }
+    }
+
+    private static long parseExpiry(String record) {
+        try {
+            return Long.parseLong(record.substring(record.indexOf(':') + 1));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.content.SharedPreferences;
+
+import java.util.Locale;
+
+/**
+ * Persistent per-stage counters of the search query plan: how often the stage ran, how often it
+ * found a cover and how often that cover was confident enough to end the lookup. Stages with
+ * low hit rates are candidates for reordering or removal.
+ * <p/>
+ * Counters are kept in shared preferences as {@code "<stage>:<counter>"} keys.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class QueryPlanStats {
+
+    private static final String ATTEMPTS = "attempts";
+    private static final String HITS = "hits";
+    private static final String CONFIDENT_HITS = "confident";
+    private static final String REQUESTS = "requests";
+
+    private final SharedPreferences mStore;
+
+    /**
+     * @param store preferences to keep counters in. Should be dedicated to these stats.
+     */
+    public QueryPlanStats(SharedPreferences store) {
+        mStore = store;
+    }
+
+    /**
+     * @param stage name of the stage that ran
+     * @param requests number of requests it made, search and probes
+     * @param hit whether the stage found a cover
+     * @param confident whether found cover was good enough to stop the plan
+     */
+    public synchronized void record(String stage, int requests, boolean hit, boolean confident) {
+        SharedPreferences.Editor editor = mStore.edit();
+        increment(editor, stage, ATTEMPTS, 1);
+        increment(editor, stage, REQUESTS, requests);
+        if (hit) {
+            increment(editor, stage, HITS, 1);
+        }
+        if (confident) {
+            increment(editor, stage, CONFIDENT_HITS, 1);
+        }
+        editor.apply();
+    }
+
+    /**
+     * @param stage name of the stage
+     * @return share of runs of the stage that found a cover, 0 if it never ran
+     */
+    public synchronized double getHitRate(String stage) {
+        long attempts = get(stage, ATTEMPTS);
+        return attempts == 0 ? 0 : (double) get(stage, HITS) / attempts;
+    }
+
+    /**
+     * @param stage name of the stage
+     * @return human-readable counters of the stage, for logs
+     */
+    public synchronized String describe(String stage) {
+        long attempts = get(stage, ATTEMPTS);
+        return String.format(Locale.US, "%s: %d runs, %d hits (%d confident), %.1f requests/run",
+                stage, attempts, get(stage, HITS), get(stage, CONFIDENT_HITS),
+                attempts == 0 ? 0.0 : (double) get(stage, REQUESTS) / attempts);
+    }
+
+    private long get(String stage, String counter) {
+        return mStore.getLong(stage + ':' + counter, 0);
+    }
+
+    private void increment(SharedPreferences.Editor editor, String stage, String counter, long delta) {
+        editor.putLong(stage + ':' + counter, get(stage, counter) + delta);
+    }
+}
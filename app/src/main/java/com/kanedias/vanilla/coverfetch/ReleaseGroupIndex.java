@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+/**
+ * Persistent mapping of canonical album keys to musicbrainz release group IDs.
+ * Once album is resolved, lookups for any of its tracks skip the search step
+ * and go to cover art archive directly.
+ *
+ * @see CoverKeys#albumKey(String, String)
+ * @author Oleg Chernovskiy
+ */
+public interface ReleaseGroupIndex {
+
+    /**
+     * @param albumKey canonical album key
+     * @return release group MBID or null if album wasn't resolved yet
+     */
+    String get(String albumKey);
+
+    /**
+     * Remember resolved release group for the album
+     *
+     * @param albumKey canonical album key
+     * @param mbid release group MBID that has the cover
+     */
+    void put(String albumKey, String mbid);
+
+    /**
+     * Forget the mapping, e.g. if release group no longer has a cover
+     *
+     * @param albumKey canonical album key
+     */
+    void remove(String albumKey);
+}
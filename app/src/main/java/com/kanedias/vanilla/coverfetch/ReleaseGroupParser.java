@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser of musicbrainz release group search answers. Reads straight from the
+ * response stream and keeps only the fields we need, skipping releases, tags and the rest
+ * of the entity without building a tree for it.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class ReleaseGroupParser {
+
+    /**
+     * Release group as found in musicbrainz search answer
+     */
+    public static class Candidate {
+
+        /**
+         * Musicbrainz ID, in UUID form
+         */
+        public final String mbid;
+
+        /**
+         * Search score, 0 to 100
+         */
+        public final int score;
+
+        /**
+         * Primary type, e.g. "Album" or "Single". Can be null
+         */
+        public final String primaryType;
+
+        /**
+         * Release group title. Can be null
+         */
+        public final String title;
+
+        /**
+         * Artist credit as shown on the release group, e.g. "Artist feat. Other". Can be null
+         */
+        public final String artist;
+
+        Candidate(String mbid, int score, String primaryType, String title, String artist) {
+            this.mbid = mbid;
+            this.score = score;
+            this.primaryType = primaryType;
+            this.title = title;
+            this.artist = artist;
+        }
+    }
+
+    private ReleaseGroupParser() {
+    }
+
+    /**
+     * Parse release groups from search answer. Stops reading as soon as enough candidates
+     * are collected, the rest of the stream is left unread.
+     *
+     * @param is search answer stream, e.g. from {@code /ws/2/release-group/?query=...&fmt=json}
+     * @param maxCandidates stop after this many release groups
+     * @return list of parsed candidates in order of the answer, possibly empty
+     * @throws IOException in case of read problems or malformed answer
+     */
+    public static List<Candidate> parse(InputStream is, int maxCandidates) throws IOException {
+        List<Candidate> result = new ArrayList<>();
+
+        JsonReader reader = new JsonReader(new InputStreamReader(is, "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("release-groups")) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginArray();
+                while (reader.hasNext() && result.size() < maxCandidates) {
+                    Candidate candidate = readReleaseGroup(reader);
+                    if (candidate != null) {
+                        result.add(candidate);
+                    }
+                }
+                // don't bother reading the rest, caller closes the stream
+                return result;
+            }
+            return result;
+        } catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader reports unexpected tokens this way
+            throw new IOException("Malformed musicbrainz answer", e);
+        }
+    }
+
+    private static Candidate readReleaseGroup(JsonReader reader) throws IOException {
+        String mbid = null;
+        String primaryType = null;
+        String title = null;
+        String artist = null;
+        int score = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+
+            switch (name) {
+                case "id":
+                    mbid = reader.nextString();
+                    break;
+                case "score":
+                    // older answers had score as a string
+                    score = Integer.parseInt(reader.nextString());
+                    break;
+                case "primary-type":
+                    primaryType = reader.nextString();
+                    break;
+                case "title":
+                    title = reader.nextString();
+                    break;
+                case "artist-credit":
+                    artist = readArtistCredit(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (mbid == null) {
+            // musicbrainz ID must be present, skip invalid entry
+            return null;
+        }
+        return new Candidate(mbid, score, primaryType, title, artist);
+    }
+
+    /**
+     * Join artist credit into one string, e.g. {@code [{"name": "A", "joinphrase": " & "}, {"name": "B"}]}
+     * becomes {@code "A & B"}
+     */
+    private static String readArtistCredit(JsonReader reader) throws IOException {
+        StringBuilder credit = new StringBuilder();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() != JsonToken.STRING) {
+                    // nested artist entity and nulls
+                    reader.skipValue();
+                    continue;
+                }
+
+                switch (name) {
+                    case "name":
+                    case "joinphrase":
+                        credit.append(reader.nextString());
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+
+        return credit.length() == 0 ? null : credit.toString();
+    }
+}
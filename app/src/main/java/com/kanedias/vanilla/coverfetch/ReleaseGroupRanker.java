@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local re-ranking of musicbrainz search results. Search score alone favours popular entities
+ * that merely share words with the query, so it's combined with similarity of candidate title
+ * and artist to what tags say. Ranking is deterministic: equal ranks keep the order of the answer.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class ReleaseGroupRanker {
+
+    /**
+     * Candidates with titles less similar than this to the requested album are surely different albums
+     */
+    private static final double MIN_TITLE_SIMILARITY = 0.3;
+
+    private static final double SCORE_WEIGHT = 0.4;
+    private static final double TITLE_WEIGHT = 0.4;
+    private static final double ARTIST_WEIGHT = 0.2;
+
+    private ReleaseGroupRanker() {
+    }
+
+    /**
+     * Order candidates from the best match to the worst, dropping ones that clearly don't match
+     *
+     * @param candidates parsed search answer
+     * @param title expected release group title, e.g. album tag. Null if unknown, e.g. search by recording
+     * @param artist expected artist, can be null
+     * @return new list of candidates in order of rank
+     */
+    public static List<ReleaseGroupParser.Candidate> rank(List<ReleaseGroupParser.Candidate> candidates, String title, String artist) {
+        String expectedTitle = title == null ? null : SearchQuery.comparable(title);
+        String expectedArtist = artist == null ? null : SearchQuery.comparable(artist);
+
+        Map<ReleaseGroupParser.Candidate, Double> ranks = new HashMap<>();
+        List<ReleaseGroupParser.Candidate> ranked = new ArrayList<>(candidates.size());
+        for (ReleaseGroupParser.Candidate candidate : candidates) {
+            double rank = rankOf(candidate, expectedTitle, expectedArtist);
+            if (rank < 0) {
+                // not worth probing its cover
+                continue;
+            }
+
+            ranks.put(candidate, rank);
+            ranked.add(candidate);
+        }
+
+        // sort is stable, ties stay in the order of the answer
+        Collections.sort(ranked, (c1, c2) -> {
+            double r1 = ranks.get(c1), r2 = ranks.get(c2);
+            return r1 > r2 ? -1 : (r1 == r2 ? 0 : 1);
+        });
+        return ranked;
+    }
+
+    /**
+     * @param candidate ranked candidate
+     * @param title expected release group title, can be null
+     * @param artist expected artist, can be null
+     * @return how well the candidate matches, from 0 to 1
+     */
+    public static double confidence(ReleaseGroupParser.Candidate candidate, String title, String artist) {
+        String expectedTitle = title == null ? null : SearchQuery.comparable(title);
+        String expectedArtist = artist == null ? null : SearchQuery.comparable(artist);
+        return Math.max(0, rankOf(candidate, expectedTitle, expectedArtist));
+    }
+
+    /**
+     * @return weighted rank from 0 to 1, negative if title doesn't match at all
+     */
+    private static double rankOf(ReleaseGroupParser.Candidate candidate, String expectedTitle, String expectedArtist) {
+        double rank = SCORE_WEIGHT * candidate.score / 100;
+        double weights = SCORE_WEIGHT;
+
+        if (expectedTitle != null) {
+            double titleSimilarity = similarity(expectedTitle, SearchQuery.comparable(candidate.title));
+            if (titleSimilarity < MIN_TITLE_SIMILARITY) {
+                return -1;
+            }
+            rank += TITLE_WEIGHT * titleSimilarity;
+            weights += TITLE_WEIGHT;
+        }
+
+        if (expectedArtist != null && candidate.artist != null) {
+            rank += ARTIST_WEIGHT * similarity(expectedArtist, SearchQuery.comparable(candidate.artist));
+            weights += ARTIST_WEIGHT;
+        }
+        return rank / weights;
+    }
+
+    /**
+     * Dice coefficient of character bigrams. Tolerant to word order, typos and small additions,
+     * which is what tag values differ by most of the time.
+     *
+     * @param s1 first string in comparable form
+     * @param s2 second string in comparable form
+     * @return similarity from 0 (nothing in common) to 1 (same strings)
+     */
+    public static double similarity(String s1, String s2) {
+        if (s1.equals(s2)) {
+            return 1;
+        }
+        if (s1.length() < 2 || s2.length() < 2) {
+            return 0;
+        }
+
+        Map<String, Integer> bigrams = new HashMap<>();
+        for (int i = 0; i < s1.length() - 1; ++i) {
+            String bigram = s1.substring(i, i + 2);
+            Integer count = bigrams.get(bigram);
+            bigrams.put(bigram, count == null ? 1 : count + 1);
+        }
+
+        int common = 0;
+        for (int i = 0; i < s2.length() - 1; ++i) {
+            String bigram = s2.substring(i, i + 2);
+            Integer count = bigrams.get(bigram);
+            if (count != null && count > 0) {
+                bigrams.put(bigram, count - 1);
+                common++;
+            }
+        }
+        return 2.0 * common / (s1.length() - 1 + s2.length() - 1);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.documentfile.provider.DocumentFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.kanedias.vanilla.plugins.saf.SafUtils.findInDocumentTree;
+
+/**
+ * Resolves file paths to documents of SAF tree the user granted access to, e.g. SD card root.
+ * <p/>
+ * Every step down the document tree is a content provider query, so resolved directories
+ * are remembered. The first lookup has to guess where the tree root is in the path and walks
+ * from it, after that all ancestors of the found directory are known and a directory next to them
+ * costs a single query. Cached nodes that turn out to be stale should be {@link #invalidate(File) invalidated}.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class SafDocumentResolver {
+
+    private final Context mContext;
+    private final Uri mTreeRoot;
+
+    /**
+     * Absolute directory path to its document in the tree
+     */
+    private final Map<String, DocumentFile> mDirs = new HashMap<>();
+
+    /**
+     * @param ctx context to query documents with
+     * @param treeRoot uri of the tree user granted access to
+     */
+    public SafDocumentResolver(Context ctx, Uri treeRoot) {
+        mContext = ctx.getApplicationContext();
+        mTreeRoot = treeRoot;
+    }
+
+    /**
+     * @return uri of the tree this resolver works in
+     */
+    public Uri getTreeRoot() {
+        return mTreeRoot;
+    }
+
+    /**
+     * Find document of the directory
+     *
+     * @param dir directory to find
+     * @return directory document or null if it's not in the tree
+     */
+    public synchronized DocumentFile resolveDir(File dir) {
+        DocumentFile cached = mDirs.get(dir.getAbsolutePath());
+        if (cached != null) {
+            return cached;
+        }
+
+        // try to descend from the nearest known ancestor
+        File parent = dir.getParentFile();
+        if (parent != null && hasKnownAncestor(parent)) {
+            DocumentFile parentDoc = resolveDir(parent);
+            if (parentDoc != null) {
+                DocumentFile found = parentDoc.findFile(dir.getName());
+                if (found == null || !found.isDirectory()) {
+                    return null;
+                }
+
+                mDirs.put(dir.getAbsolutePath(), found);
+                return found;
+            }
+        }
+
+        // nothing known yet, we have to find where the tree root is
+        List<String> pathSegments = new ArrayList<>(Arrays.asList(dir.getAbsolutePath().split("/")));
+        DocumentFile found = findInDocumentTree(DocumentFile.fromTreeUri(mContext, mTreeRoot), pathSegments);
+        if (found == null) {
+            return null;
+        }
+
+        rememberWithAncestors(dir, found);
+        return found;
+    }
+
+    /**
+     * Find the file document in the tree
+     *
+     * @param file file to find
+     * @return file document or null if it's not in the tree
+     */
+    public DocumentFile resolveFile(File file) {
+        File parent = file.getParentFile();
+        DocumentFile parentDoc = parent == null ? null : resolveDir(parent);
+        if (parentDoc == null) {
+            return null;
+        }
+        return parentDoc.findFile(file.getName());
+    }
+
+    /**
+     * Find or create the file in the directory. Existing file is reused, so repeated writes
+     * don't produce numbered copies.
+     *
+     * @param dir directory to create file in
+     * @param name name of the file
+     * @param mimeType mime type of the file
+     * @return document of the file or null if directory is not in the tree or file couldn't be created
+     */
+    public DocumentFile createOrReplace(File dir, String name, String mimeType) {
+        DocumentFile dirDoc = resolveDir(dir);
+        if (dirDoc == null) {
+            return null;
+        }
+
+        DocumentFile existing = dirDoc.findFile(name);
+        if (existing != null && !existing.isDirectory()) {
+            return existing;
+        }
+
+        DocumentFile created = dirDoc.createFile(mimeType, name);
+        if (created == null) {
+            // cached directory may be gone
+            invalidate(dir);
+        }
+        return created;
+    }
+
+    /**
+     * Forget cached document of the directory and everything below it,
+     * e.g. after writing into it failed
+     *
+     * @param dir directory to forget
+     */
+    public synchronized void invalidate(File dir) {
+        String path = dir.getAbsolutePath();
+        String prefix = path + '/';
+
+        Iterator<String> it = mDirs.keySet().iterator();
+        while (it.hasNext()) {
+            String known = it.next();
+            if (known.equals(path) || known.startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean hasKnownAncestor(File dir) {
+        for (File current = dir; current != null; current = current.getParentFile()) {
+            if (mDirs.containsKey(current.getAbsolutePath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Documents found by walking the tree know their parents, remember them all the way up to the root
+     */
+    private void rememberWithAncestors(File dir, DocumentFile found) {
+        File currentDir = dir;
+        DocumentFile currentDoc = found;
+        while (currentDir != null && currentDoc != null) {
+            mDirs.put(currentDir.getAbsolutePath(), currentDoc);
+            currentDir = currentDir.getParentFile();
+            currentDoc = currentDoc.getParentFile();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Builder of musicbrainz search queries from raw tag values. Tags come as they are in files:
+ * with {@code (Remastered 2011)} suffixes, {@code feat.} credits, typographic quotes
+ * and characters that mean something to Lucene, e.g. {@code AC/DC} or {@code Re: Stacks}.
+ * Every value is cleaned up and escaped before it goes into the query.
+ *
+ * @see <a href="https://musicbrainz.org/doc/MusicBrainz_API/Search">Search syntax</a>
+ * @author Oleg Chernovskiy
+ */
+public class SearchQuery {
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    /**
+     * Bracketed suffixes that denote an edition of the same work, e.g. {@code (Remastered 2011)} or {@code [Deluxe Edition]}
+     */
+    private static final Pattern VERSION_BRACKETS = Pattern.compile(
+            "\\s*[(\\[][^)\\]]*\\b(remaster(ed)?|deluxe|edition|version|bonus|expanded|anniversary|reissue"
+                    + "|explicit|clean|mono|stereo|radio edit|feat\\.?|ft\\.?|featuring)\\b[^)\\]]*[)\\]]",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Dash-separated suffixes of the same kind, e.g. {@code - 2011 Remaster}
+     */
+    private static final Pattern VERSION_DASH = Pattern.compile(
+            "\\s+-\\s+[^-]*\\b(remaster(ed)?|version|edit|mono|stereo|live)\\b.*$",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Featured artists credited right in the title or artist tag
+     */
+    private static final Pattern FEATURING = Pattern.compile(
+            "\\s+(feat\\.?|ft\\.|featuring)\\s+.*$",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern LUCENE_OPERATORS = Pattern.compile("^(AND|OR|NOT|TO)$");
+
+    private static final String LUCENE_SPECIAL = "+-&|!(){}[]^\"~*?:\\/";
+
+    private final List<String> mClauses = new ArrayList<>();
+
+    /**
+     * Add clause that matches all words of the value in the field. Empty values are skipped.
+     *
+     * @param field search field, e.g. {@code releasegroup} or {@code artistname}
+     * @param value raw tag value, can be null
+     * @return this query
+     */
+    public SearchQuery and(String field, String value) {
+        String cleaned = clean(value);
+        if (cleaned.isEmpty()) {
+            // the whole value was a suffix, better search for it as is than not at all
+            cleaned = fold(value);
+        }
+
+        List<String> terms = new ArrayList<>();
+        for (String word : cleaned.split("\\s+")) {
+            String term = escape(word);
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+
+        if (!terms.isEmpty()) {
+            mClauses.add(field + ":(" + join(terms, " ") + ')');
+        }
+        return this;
+    }
+
+    /**
+     * @return true if none of the clauses had anything to search for
+     */
+    public boolean isEmpty() {
+        return mClauses.isEmpty();
+    }
+
+    /**
+     * @return Lucene query with all clauses required
+     */
+    @Override
+    public String toString() {
+        return join(mClauses, " AND ");
+    }
+
+    /**
+     * Fold the value and strip edition suffixes and featured artists from it
+     *
+     * @param value raw tag value, can be null
+     * @return cleaned value, empty if nothing is left
+     */
+    public static String clean(String value) {
+        String folded = fold(value);
+        String stripped = VERSION_BRACKETS.matcher(folded).replaceAll("");
+        stripped = VERSION_DASH.matcher(stripped).replaceAll("");
+        stripped = FEATURING.matcher(stripped).replaceAll("");
+        return stripped.trim();
+    }
+
+    /**
+     * Form of the value for similarity comparison: cleaned, lowercase, with punctuation dropped
+     *
+     * @param value raw value, can be null
+     * @return comparable form, words separated by single spaces
+     */
+    public static String comparable(String value) {
+        return clean(value).toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{N}]+", " ").trim();
+    }
+
+    /**
+     * Unicode folding: compatibility decomposition with diacritics removed, typographic quotes
+     * and dashes replaced with plain ones, whitespace collapsed.
+     *
+     * @param value raw value, can be null
+     * @return folded value, empty for null
+     */
+    public static String fold(String value) {
+        if (value == null) {
+            return "";
+        }
+
+        String decomposed = Normalizer.normalize(value, Normalizer.Form.NFKD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("")
+                .replaceAll("[\\u2018\\u2019\\u201A\\u201B\\u00B4`]", "'")
+                .replaceAll("[\\u201C\\u201D\\u201E\\u201F]", "\"")
+                .replaceAll("[\\u2010-\\u2015\\u2212]", "-")
+                .replaceAll("\\s+", " ")
+                .trim();
+    }
+
+    /**
+     * Escape single term so Lucene treats it literally
+     *
+     * @param term single word, without whitespace
+     * @return escaped term
+     */
+    public static String escape(String term) {
+        if (LUCENE_OPERATORS.matcher(term).matches()) {
+            // operators are case-sensitive, lowercase word is just a word
+            return term.toLowerCase(Locale.ROOT);
+        }
+
+        StringBuilder escaped = new StringBuilder(term.length() + 4);
+        for (int i = 0; i < term.length(); ++i) {
+            char c = term.charAt(i);
+            if (LUCENE_SPECIAL.indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    private static String join(List<String> parts, String separator) {
+        StringBuilder joined = new StringBuilder();
+        for (String part : parts) {
+            if (joined.length() > 0) {
+                joined.append(separator);
+            }
+            joined.append(part);
+        }
+        return joined.toString();
+    }
+}
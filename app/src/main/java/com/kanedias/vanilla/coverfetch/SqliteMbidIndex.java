@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Everything learned from musicbrainz and cover art archive, kept in SQLite: which release group
+ * an album resolved to, and what the index of that release group said last time, with its validators.
+ * Lookups for known albums skip the search API completely, and their index is only re-validated
+ * with a conditional request.
+ * <p/>
+ * Album keys are hashed canonical keys (see {@link CoverKeys#albumKey(String, String)}), they don't
+ * depend on the device, so the index can be {@link #exportTo(OutputStream) exported} and
+ * {@link #importFrom(InputStream) imported} elsewhere. Index shipped in assets as {@value #BUNDLED_ASSET}
+ * is imported when the database is created.
+ * <p/>
+ * Recently used album keys are kept in memory, so repeated lookups don't touch the database at all.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class SqliteMbidIndex extends SQLiteOpenHelper implements ReleaseGroupIndex, CoverIndexCache {
+
+    private static final String TAG = SqliteMbidIndex.class.getSimpleName();
+
+    private static final String DB_NAME = "mbid-index.db";
+    private static final int DB_VERSION = 1;
+
+    private static final String BUNDLED_ASSET = "mbid-index.tsv";
+    private static final String EXPORT_HEADER = "# cover-fetch mbid index v1";
+
+    private static final String ALBUMS = "albums";
+    private static final String RELEASE_GROUPS = "release_groups";
+
+    private static final int MAX_MEMOIZED_ALBUMS = 512;
+
+    /**
+     * Stands for "album is not in the index" in memoized lookups
+     */
+    private static final String UNKNOWN = "";
+
+    private final Context mContext;
+
+    /**
+     * Hashed album key to MBID or {@link #UNKNOWN}, in LRU order
+     */
+    private final Map<String, String> mAlbums = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_MEMOIZED_ALBUMS;
+        }
+    };
+
+    /**
+     * @param ctx context to open database and assets with
+     */
+    public SqliteMbidIndex(Context ctx) {
+        super(ctx.getApplicationContext(), DB_NAME, null, DB_VERSION);
+        mContext = ctx.getApplicationContext();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ALBUMS + " ("
+                + "album_key TEXT PRIMARY KEY, "
+                + "mbid TEXT NOT NULL, "
+                + "resolved_at INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + RELEASE_GROUPS + " ("
+                + "mbid TEXT PRIMARY KEY, "
+                + "etag TEXT, "
+                + "last_modified TEXT, "
+                + "front_image TEXT, "
+                + "checked_at INTEGER NOT NULL)");
+
+        try (InputStream bundled = mContext.getAssets().open(BUNDLED_ASSET)) {
+            int imported = importFrom(db, bundled);
+            Log.i(TAG, "Imported " + imported + " entries of bundled mbid index");
+        } catch (FileNotFoundException e) {
+            // no pre-built index in this build
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't import bundled mbid index", e);
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // first version, nothing to upgrade yet
+    }
+
+    @Override
+    public String get(String albumKey) {
+        String hashed = CoverKeys.hashed(albumKey);
+        synchronized (mAlbums) {
+            String memoized = mAlbums.get(hashed);
+            if (memoized != null) {
+                return memoized.equals(UNKNOWN) ? null : memoized;
+            }
+        }
+
+        String mbid = null;
+        try {
+            Cursor cursor = getReadableDatabase().rawQuery(
+                    "SELECT mbid FROM " + ALBUMS + " WHERE album_key = ?", new String[]{hashed});
+            try {
+                if (cursor.moveToFirst()) {
+                    mbid = cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Couldn't query mbid index", e);
+            return null;
+        }
+
+        synchronized (mAlbums) {
+            mAlbums.put(hashed, mbid == null ? UNKNOWN : mbid);
+        }
+        return mbid;
+    }
+
+    @Override
+    public void put(String albumKey, String mbid) {
+        String hashed = CoverKeys.hashed(albumKey);
+        ContentValues values = new ContentValues();
+        values.put("album_key", hashed);
+        values.put("mbid", mbid);
+        values.put("resolved_at", System.currentTimeMillis());
+
+        try {
+            getWritableDatabase().insertWithOnConflict(ALBUMS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Couldn't update mbid index", e);
+            return;
+        }
+
+        synchronized (mAlbums) {
+            mAlbums.put(hashed, mbid);
+        }
+    }
+
+    @Override
+    public void remove(String albumKey) {
+        String hashed = CoverKeys.hashed(albumKey);
+        try {
+            getWritableDatabase().delete(ALBUMS, "album_key = ?", new String[]{hashed});
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Couldn't update mbid index", e);
+        }
+
+        synchronized (mAlbums) {
+            mAlbums.put(hashed, UNKNOWN);
+        }
+    }
+
+    @Override
+    public Entry getIndex(String mbid) {
+        try {
+            Cursor cursor = getReadableDatabase().rawQuery(
+                    "SELECT etag, last_modified, front_image FROM " + RELEASE_GROUPS + " WHERE mbid = ?", new String[]{mbid});
+            try {
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+                return new Entry(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Couldn't query mbid index", e);
+            return null;
+        }
+    }
+
+    @Override
+    public void putIndex(String mbid, Entry entry) {
+        ContentValues values = new ContentValues();
+        values.put("mbid", mbid);
+        values.put("etag", entry.etag);
+        values.put("last_modified", entry.lastModified);
+        values.put("front_image", entry.frontImage);
+        values.put("checked_at", System.currentTimeMillis());
+
+        try {
+            getWritableDatabase().insertWithOnConflict(RELEASE_GROUPS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Couldn't update mbid index", e);
+        }
+    }
+
+    /**
+     * Move entries of preferences-backed index here, e.g. after upgrade from versions that kept
+     * resolved albums in {@code cover-albums} preferences. Keys there are hashed the same way.
+     *
+     * @param legacy contents of the old index, hashed album key to MBID
+     * @return number of moved entries
+     */
+    public int importLegacy(Map<String, ?> legacy) {
+        SQLiteDatabase db = getWritableDatabase();
+        int imported = 0;
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, ?> entry : legacy.entrySet()) {
+                if (!(entry.getValue() instanceof String)) {
+                    continue;
+                }
+
+                ContentValues values = new ContentValues();
+                values.put("album_key", entry.getKey());
+                values.put("mbid", (String) entry.getValue());
+                values.put("resolved_at", System.currentTimeMillis());
+                if (db.insertWithOnConflict(ALBUMS, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+                    imported++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return imported;
+    }
+
+    /**
+     * Write the whole index as tab-separated text, one entry per line. Validators are exported too,
+     * they are the same for every client of cover art archive.
+     *
+     * @param os stream to write to, is not closed
+     * @throws IOException in case of write problems
+     */
+    void exportTo(OutputStream os) throws IOException {
+        Writer writer = new OutputStreamWriter(os, "UTF-8");
+        writer.write(EXPORT_HEADER + '\n');
+
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor albums = db.rawQuery("SELECT album_key, mbid, resolved_at FROM " + ALBUMS, null);
+        try {
+            while (albums.moveToNext()) {
+                writer.write("A\t" + albums.getString(0) + '\t' + albums.getString(1) + '\t' + albums.getLong(2) + '\n');
+            }
+        } finally {
+            albums.close();
+        }
+
+        Cursor relGroups = db.rawQuery("SELECT mbid, etag, last_modified, front_image, checked_at FROM " + RELEASE_GROUPS, null);
+        try {
+            while (relGroups.moveToNext()) {
+                writer.write("R\t" + relGroups.getString(0)
+                        + '\t' + orEmpty(relGroups.getString(1))
+                        + '\t' + orEmpty(relGroups.getString(2))
+                        + '\t' + orEmpty(relGroups.getString(3))
+                        + '\t' + relGroups.getLong(4) + '\n');
+            }
+        } finally {
+            relGroups.close();
+        }
+        writer.flush();
+    }
+
+    /**
+     * Import index written by {@link #exportTo(OutputStream)}. Entries already known locally are kept,
+     * they are at least as fresh as the imported ones.
+     *
+     * @param is stream to read from, is not closed
+     * @return number of imported entries
+     * @throws IOException in case of read problems or if stream is not an exported index
+     */
+    int importFrom(InputStream is) throws IOException {
+        int imported = importFrom(getWritableDatabase(), is);
+        synchronized (mAlbums) {
+            // albums that were unknown may be known now
+            mAlbums.clear();
+        }
+        return imported;
+    }
+
+    private static int importFrom(SQLiteDatabase db, InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        if (!EXPORT_HEADER.equals(reader.readLine())) {
+            throw new IOException("Not an mbid index export");
+        }
+
+        int imported = 0;
+        db.beginTransaction();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                ContentValues values = new ContentValues();
+                String table;
+                if (parts[0].equals("A") && parts.length == 4) {
+                    table = ALBUMS;
+                    values.put("album_key", parts[1]);
+                    values.put("mbid", parts[2]);
+                    values.put("resolved_at", Long.parseLong(parts[3]));
+                } else if (parts[0].equals("R") && parts.length == 6) {
+                    table = RELEASE_GROUPS;
+                    values.put("mbid", parts[1]);
+                    values.put("etag", orNull(parts[2]));
+                    values.put("last_modified", orNull(parts[3]));
+                    values.put("front_image", orNull(parts[4]));
+                    values.put("checked_at", Long.parseLong(parts[5]));
+                } else {
+                    throw new IOException("Malformed mbid index entry: " + line);
+                }
+
+                if (db.insertWithOnConflict(table, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+                    imported++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed mbid index entry", e);
+        } finally {
+            db.endTransaction();
+        }
+        return imported;
+    }
+
+    private static String orEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String orNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Local cover engine that reads artwork embedded in file tags. Tags themselves are read by
+ * tag editor plugin, which passes extracted artwork to us as a content uri.
+ * <p/>
+ * As content uri is not a file, artwork is copied into the cover store. Stored covers are evicted
+ * by the store like any other, so copies don't pile up no matter whether lookup used them or not.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class TagCoverEngine implements CoverEngine {
+
+    private final ContentResolver mResolver;
+    private final CoverBlobStore mStore;
+
+    /**
+     * @param resolver resolver to open artwork uri with
+     * @param store store to copy artwork into
+     */
+    public TagCoverEngine(ContentResolver resolver, CoverBlobStore store) {
+        mResolver = resolver;
+        mStore = store;
+    }
+
+    @Override
+    public File getCover(CoverRequest request) throws IOException {
+        Uri imgLink = request.getTagArtUri();
+        if (imgLink == null) {
+            return null;
+        }
+
+        File spoolDir = mStore.getSpoolDir();
+        if (!spoolDir.exists() && !spoolDir.mkdirs()) {
+            throw new IOException("Couldn't create spool dir for covers! Path " + spoolDir);
+        }
+
+        InputStream is = mResolver.openInputStream(imgLink);
+        if (is == null) {
+            return null;
+        }
+
+        File spooled = File.createTempFile("tag", ".part", spoolDir);
+        try (InputStream in = is; OutputStream os = new FileOutputStream(spooled)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            spooled.delete();
+            throw e;
+        }
+
+        if (spooled.length() == 0) {
+            // tag editor found no artwork
+            spooled.delete();
+            return null;
+        }
+
+        File stored = mStore.put(spooled, null);
+        if (stored == null) {
+            spooled.delete();
+            throw new IOException("Couldn't store artwork from tag, see log for details");
+        }
+        return stored;
+    }
+}
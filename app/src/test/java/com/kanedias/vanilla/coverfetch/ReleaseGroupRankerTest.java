@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Table-driven corpus for {@link ReleaseGroupRanker}: raw tags as they come from files,
+ * search answers as musicbrainz returns them, and release group that should be probed first.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class ReleaseGroupRankerTest {
+
+    /**
+     * One row of the corpus
+     */
+    private static class Case {
+
+        private final String name;
+        private final String album;
+        private final String artist;
+        private final List<ReleaseGroupParser.Candidate> answer;
+        private final String expectedTop;
+
+        private Case(String name, String album, String artist, String expectedTop, ReleaseGroupParser.Candidate... answer) {
+            this.name = name;
+            this.album = album;
+            this.artist = artist;
+            this.answer = Arrays.asList(answer);
+            this.expectedTop = expectedTop;
+        }
+    }
+
+    private static ReleaseGroupParser.Candidate rg(String mbid, int score, String title, String artist) {
+        return new ReleaseGroupParser.Candidate(mbid, score, "Album", title, artist);
+    }
+
+    private static final Case[] CORPUS = {
+            new Case("exact match beats higher score of another album",
+                    "OK Computer", "Radiohead", "ok-computer",
+                    rg("ok-not-ok", 100, "OKNOTOK 1997 2017", "Radiohead"),
+                    rg("ok-computer", 98, "OK Computer", "Radiohead")),
+
+            new Case("diacritics missing in tags",
+                    "Agaetis byrjun", "Sigur Ros", "agaetis",
+                    rg("takk", 100, "Takk...", "Sigur R\u00F3s"),
+                    rg("agaetis", 90, "\u00C1g\u00E6tis byrjun", "Sigur R\u00F3s")),
+
+            new Case("diacritics present in tags only",
+                    "D\u00E9j\u00E0 Vu", "Crosby, Stills, Nash & Young", "deja-vu",
+                    rg("deja-vu-live", 100, "D\u00E9j\u00E0 Vu Live", "Crosby, Stills, Nash & Young"),
+                    rg("deja-vu", 100, "Deja Vu", "Crosby, Stills, Nash & Young")),
+
+            new Case("deluxe edition suffix",
+                    "Random Access Memories (Deluxe Edition)", "Daft Punk", "ram",
+                    rg("ram-tribute", 100, "Random Access Memories: A Tribute", "Various Artists"),
+                    rg("ram", 97, "Random Access Memories", "Daft Punk")),
+
+            new Case("remaster suffix after dash",
+                    "Rumours - 2004 Remaster", "Fleetwood Mac", "rumours",
+                    rg("rumours-live", 100, "Rumours Live", "Fleetwood Mac"),
+                    rg("rumours", 99, "Rumours", "Fleetwood Mac")),
+
+            new Case("bracketed remaster year",
+                    "Led Zeppelin IV (Remastered 2014)", "Led Zeppelin", "lz4",
+                    rg("lz4", 100, "Led Zeppelin IV", "Led Zeppelin"),
+                    rg("lz3", 100, "Led Zeppelin III", "Led Zeppelin")),
+
+            new Case("'The' prefix missing in tags",
+                    "Abbey Road", "Beatles", "abbey-road",
+                    rg("abbey-road-shadows", 100, "Abbey Road", "The Shadows"),
+                    rg("abbey-road", 98, "Abbey Road", "The Beatles")),
+
+            new Case("'The' prefix present in tags only",
+                    "Is This It", "The Strokes", "is-this-it",
+                    rg("is-this-it-tribute", 100, "Is This It", "Various Artists"),
+                    rg("is-this-it", 95, "Is This It", "Strokes")),
+
+            new Case("featured artist in artist tag",
+                    "18 Months", "Calvin Harris feat. Rihanna", "18-months",
+                    rg("18", 100, "18", "Moby"),
+                    rg("18-months", 90, "18 Months", "Calvin Harris")),
+
+            new Case("featured artist in title tag",
+                    "Watch the Throne (feat. Frank Ocean)", "Jay-Z & Kanye West", "wtt",
+                    rg("throne", 100, "Throne", "Various Artists"),
+                    rg("wtt", 92, "Watch the Throne", "JAY-Z & Kanye West")),
+
+            new Case("typographic quotes",
+                    "(What\u2019s the Story) Morning Glory?", "Oasis", "wtsmg",
+                    rg("morning-glory", 100, "Morning Glory", "Oasis"),
+                    rg("wtsmg", 100, "(What's the Story) Morning Glory?", "Oasis")),
+
+            new Case("punctuation and case differences",
+                    "ac/dc live", "AC/DC", "live",
+                    rg("live-at-river-plate", 100, "Live at River Plate", "AC/DC"),
+                    rg("live", 100, "Live", "AC\u2010DC")),
+
+            new Case("unknown artist ranks by title and score",
+                    "Discovery", null, "discovery",
+                    rg("discovery-live", 100, "Discovery Live", "Someone"),
+                    rg("discovery", 100, "Discovery", "Daft Punk")),
+
+            new Case("equal ranks keep order of the answer",
+                    "Greatest Hits", "Queen", "gh-first",
+                    rg("gh-first", 100, "Greatest Hits", "Queen"),
+                    rg("gh-second", 100, "Greatest Hits", "Queen")),
+    };
+
+    @Test
+    public void corpus() {
+        for (Case c : CORPUS) {
+            List<ReleaseGroupParser.Candidate> ranked = ReleaseGroupRanker.rank(c.answer, c.album, c.artist);
+            assertTrue(c.name + ": nothing ranked", !ranked.isEmpty());
+            assertEquals(c.name, c.expectedTop, ranked.get(0).mbid);
+        }
+    }
+
+    @Test
+    public void rankingIsDeterministic() {
+        for (Case c : CORPUS) {
+            List<ReleaseGroupParser.Candidate> first = ReleaseGroupRanker.rank(c.answer, c.album, c.artist);
+            List<ReleaseGroupParser.Candidate> second = ReleaseGroupRanker.rank(new ArrayList<>(c.answer), c.album, c.artist);
+            assertEquals(c.name, first, second);
+        }
+    }
+
+    @Test
+    public void unrelatedTitlesAreDropped() {
+        List<ReleaseGroupParser.Candidate> ranked = ReleaseGroupRanker.rank(Arrays.asList(
+                rg("a", 100, "Parachutes", "Coldplay"),
+                rg("b", 100, "Viva la Vida", "Coldplay")), "Ghost Stories", "Coldplay");
+        assertTrue(ranked.isEmpty());
+    }
+
+    @Test
+    public void recordingSearchKeepsAllTitles() {
+        // searching by recording, release group title can be anything
+        List<ReleaseGroupParser.Candidate> ranked = ReleaseGroupRanker.rank(Arrays.asList(
+                rg("compilation", 100, "Now That's What I Call Music! 42", "Various Artists"),
+                rg("album", 95, "Parachutes", "Coldplay")), null, "Coldplay");
+        assertEquals(2, ranked.size());
+        assertEquals("album", ranked.get(0).mbid);
+    }
+
+    @Test
+    public void confidenceOfExactMatch() {
+        ReleaseGroupParser.Candidate exact = rg("x", 100, "Parachutes", "Coldplay");
+        assertEquals(1.0, ReleaseGroupRanker.confidence(exact, "Parachutes", "Coldplay"), 1e-9);
+        assertEquals(0.0, ReleaseGroupRanker.confidence(exact, "Ghost Stories", "Coldplay"), 1e-9);
+    }
+
+    @Test
+    public void similarity() {
+        assertEquals(1.0, ReleaseGroupRanker.similarity("abbey road", "abbey road"), 1e-9);
+        assertEquals(0.0, ReleaseGroupRanker.similarity("a", "abbey road"), 1e-9);
+        assertTrue(ReleaseGroupRanker.similarity("agaetis byrjun", SearchQuery.comparable("\u00C1g\u00E6tis byrjun")) > 0.6);
+        assertTrue(ReleaseGroupRanker.similarity("beatles", "the beatles") > 0.7);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2020 Oleg Chernovskiy <adonai@xaker.ru>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kanedias.vanilla.coverfetch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Table-driven corpus for {@link SearchQuery}: raw tag values and Lucene queries they should turn into.
+ *
+ * @author Oleg Chernovskiy
+ */
+public class SearchQueryTest {
+
+    /**
+     * Rows of raw album tag and expected release group clause
+     */
+    private static final String[][] ALBUM_CLAUSES = {
+            {"OK Computer", "releasegroup:(OK Computer)"},
+            {"Random Access Memories (Deluxe Edition)", "releasegroup:(Random Access Memories)"},
+            {"Led Zeppelin IV (Remastered 2014)", "releasegroup:(Led Zeppelin IV)"},
+            {"Rumours - 2004 Remaster", "releasegroup:(Rumours)"},
+            {"Watch the Throne [feat. Frank Ocean]", "releasegroup:(Watch the Throne)"},
+            {"Agaetis byrjun", "releasegroup:(Agaetis byrjun)"},
+            {"D\u00E9j\u00E0 Vu", "releasegroup:(Deja Vu)"},
+            {"(What\u2019s the Story) Morning Glory?", "releasegroup:(\\(What's the Story\\) Morning Glory\\?)"},
+            {"Re: Stacks", "releasegroup:(Re\\: Stacks)"},
+            {"AC/DC Live", "releasegroup:(AC\\/DC Live)"},
+            {"Black AND White", "releasegroup:(Black and White)"},
+            {"  Spaced   Out  ", "releasegroup:(Spaced Out)"},
+            // suffix is all there is, search for it as is
+            {"(Deluxe Edition)", "releasegroup:(\\(Deluxe Edition\\))"},
+    };
+
+    /**
+     * Rows of raw artist tag and expected artist clause
+     */
+    private static final String[][] ARTIST_CLAUSES = {
+            {"Radiohead", "artistname:(Radiohead)"},
+            {"Calvin Harris feat. Rihanna", "artistname:(Calvin Harris)"},
+            {"Calvin Harris ft. Rihanna", "artistname:(Calvin Harris)"},
+            {"Sigur R\u00F3s", "artistname:(Sigur Ros)"},
+            {"The Beatles", "artistname:(The Beatles)"},
+            {"Jay\u2010Z", "artistname:(Jay\\-Z)"},
+    };
+
+    @Test
+    public void albumClauses() {
+        for (String[] row : ALBUM_CLAUSES) {
+            assertEquals(row[0], row[1], new SearchQuery().and("releasegroup", row[0]).toString());
+        }
+    }
+
+    @Test
+    public void artistClauses() {
+        for (String[] row : ARTIST_CLAUSES) {
+            assertEquals(row[0], row[1], new SearchQuery().and("artistname", row[0]).toString());
+        }
+    }
+
+    @Test
+    public void clausesAreRequired() {
+        String query = new SearchQuery()
+                .and("releasegroup", "OK Computer")
+                .and("artistname", "Radiohead")
+                .toString();
+        assertEquals("releasegroup:(OK Computer) AND artistname:(Radiohead)", query);
+    }
+
+    @Test
+    public void emptyValuesAreSkipped() {
+        SearchQuery query = new SearchQuery().and("releasegroup", null).and("artistname", "   ");
+        assertTrue(query.isEmpty());
+        assertEquals("", query.toString());
+    }
+
+    @Test
+    public void comparableForm() {
+        assertEquals("what s the story morning glory", SearchQuery.comparable("(What\u2019s the Story) Morning Glory?"));
+        assertEquals("deja vu", SearchQuery.comparable("D\u00E9j\u00E0 Vu (Remastered)"));
+        assertEquals("ac dc", SearchQuery.comparable("AC/DC"));
+    }
+}